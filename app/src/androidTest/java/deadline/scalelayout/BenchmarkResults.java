@@ -0,0 +1,58 @@
+package deadline.scalelayout;
+
+import android.os.Bundle;
+import android.support.test.InstrumentationRegistry;
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * benchmark结果的输出: 写到logcat, 同时作为instrumentation status发给运行的一方,
+ * `adb shell am instrument -r` 的输出中可以看到INSTRUMENTATION_STATUS: key=value
+ */
+final class BenchmarkResults {
+
+    private static final String TAG = "ScaleLayoutBenchmark";
+
+    /**
+     * AndroidJUnitRunner用 1 0 -1 -2 报告测试的开始和结果，这里用不同的值
+     */
+    private static final int STATUS_CODE = 2;
+
+    private final String mName;
+    private final Bundle mResults = new Bundle();
+
+    BenchmarkResults(String name) {
+        mName = name;
+    }
+
+    BenchmarkResults put(String key, long value) {
+        mResults.putString(mName + "." + key, String.valueOf(value));
+        return this;
+    }
+
+    BenchmarkResults put(String key, double value) {
+        mResults.putString(mName + "." + key, String.format(Locale.US, "%.3f", value));
+        return this;
+    }
+
+    void report() {
+        for (String key : mResults.keySet()) {
+            Log.i(TAG, key + " = " + mResults.getString(key));
+        }
+        InstrumentationRegistry.getInstrumentation().sendStatus(STATUS_CODE, mResults);
+    }
+
+    /**
+     * 多次gc, 让前面的对象都被回收
+     * @return 当前使用的java堆大小
+     */
+    static long usedMemoryAfterGc() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            runtime.gc();
+            runtime.runFinalization();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
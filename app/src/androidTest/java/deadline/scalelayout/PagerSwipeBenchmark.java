@@ -0,0 +1,153 @@
+package deadline.scalelayout;
+
+import android.app.Instrumentation;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.rule.ActivityTestRule;
+import android.support.test.runner.AndroidJUnit4;
+import android.view.LayoutInflater;
+import android.view.View;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import deadline.scalelayout.scaleViewPager.MultiViewPager;
+import deadline.scalelayout.scaleViewPager.MyPagerAdapter;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 在MultiViewPager中一页一页地翻过500页, 统计有和没有BitmapPool时分配的内存和gc次数
+ *
+ * 和ScaleViewPagerActivity一样的页面, 每页都用sampled loading显示三张大图之一。
+ * 每次翻页前清空BitmapMemoryCache, 相当于有500张不同的图片, 每一页都要重新解码或者从磁盘缓存读取;
+ * "没有pool"在每次翻页后清空BitmapPool, 每次解码都要分配新的bitmap。
+ * API 26开始bitmap的像素不在java堆中，分配的字节数只包括java对象
+ */
+@RunWith(AndroidJUnit4.class)
+public class PagerSwipeBenchmark {
+
+    private static final int PAGES = 500;
+    private static final long PAGE_TIMEOUT = 5000;
+    private static final int[] IMAGES = {R.mipmap.image_1, R.mipmap.image_2, R.mipmap.image_3};
+
+    @Rule
+    public final ActivityTestRule<ScaleActivity> activityRule = new ActivityTestRule<>(ScaleActivity.class);
+
+    private Instrumentation instrumentation;
+    private MultiViewPager pager;
+    private final TouchImageView[] images = new TouchImageView[PAGES];
+
+    private void showPager() {
+        instrumentation = InstrumentationRegistry.getInstrumentation();
+        instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                ScaleActivity activity = activityRule.getActivity();
+                activity.setContentView(R.layout.activity_scaleviewpager_main);
+                pager = (MultiViewPager) activity.findViewById(R.id.scaleLayout_center);
+
+                LayoutInflater inflater = LayoutInflater.from(activity);
+                List<View> views = new ArrayList<>(PAGES);
+                for (int i = 0; i < PAGES; i++) {
+                    View view = inflater.inflate(R.layout.viewpager_item_view, null, false);
+                    images[i] = (TouchImageView) view.findViewById(R.id.child_image);
+                    images[i].setSampledLoadingEnabled(true);
+                    images[i].setImageResource(IMAGES[i % IMAGES.length]);
+                    views.add(view);
+                }
+                pager.setAdapter(new MyPagerAdapter(views));
+            }
+        });
+        awaitLoaded(0);
+    }
+
+    private boolean isLoaded(final int page) {
+        final boolean[] loaded = new boolean[1];
+        instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                loaded[0] = images[page].getDrawable() != null;
+            }
+        });
+        return loaded[0];
+    }
+
+    private void awaitLoaded(int page) {
+        long deadline = SystemClock.uptimeMillis() + PAGE_TIMEOUT;
+        while (!isLoaded(page)) {
+            if (SystemClock.uptimeMillis() > deadline) {
+                fail("page " + page + " was not loaded in " + PAGE_TIMEOUT + "ms");
+            }
+            SystemClock.sleep(5);
+        }
+    }
+
+    private void showPage(final int page, final boolean pool) {
+        instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                BitmapMemoryCache.getInstance().clear();
+                if (!pool) {
+                    BitmapPool.getInstance().clear();
+                }
+                // 被移除的页面在这里释放它们的bitmap
+                pager.setCurrentItem(page, false);
+                if (!pool) {
+                    BitmapPool.getInstance().clear();
+                }
+            }
+        });
+        awaitLoaded(page);
+    }
+
+    @SuppressWarnings("deprecation")
+    private void swipe(boolean pool) {
+        showPager();
+        BitmapPool bitmapPool = BitmapPool.getInstance();
+        int hits = bitmapPool.hitCount();
+        int misses = bitmapPool.missCount();
+
+        BenchmarkResults.usedMemoryAfterGc();
+        Debug.resetAllCounts();
+        Debug.startAllocCounting();
+        long start = SystemClock.uptimeMillis();
+        for (int page = 1; page < PAGES; page++) {
+            showPage(page, pool);
+        }
+        long duration = SystemClock.uptimeMillis() - start;
+        Debug.stopAllocCounting();
+
+        hits = bitmapPool.hitCount() - hits;
+        misses = bitmapPool.missCount() - misses;
+        new BenchmarkResults("pager." + (pool ? "pool" : "noPool"))
+                .put("pages", PAGES)
+                .put("bytesAllocated", Debug.getGlobalAllocSize())
+                .put("objectsAllocated", Debug.getGlobalAllocCount())
+                .put("gcCount", Debug.getGlobalGcInvocationCount())
+                .put("poolHits", hits)
+                .put("poolMisses", misses)
+                .put("durationMillis", duration)
+                .report();
+
+        if (pool && BitmapPool.isSupported()) {
+            assertTrue("no decode reused a pooled bitmap", hits > 0);
+        }
+    }
+
+    @Test
+    public void swipe500PagesWithoutPool() {
+        swipe(false);
+    }
+
+    @Test
+    public void swipe500PagesWithPool() {
+        swipe(true);
+    }
+}
@@ -0,0 +1,118 @@
+package deadline.scalelayout;
+
+import android.content.Context;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.annotation.UiThreadTest;
+import android.support.test.rule.UiThreadTestRule;
+import android.support.test.runner.AndroidJUnit4;
+import android.view.MotionEvent;
+import android.view.ViewConfiguration;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * ScaleLayout每一帧的完整路径不能分配内存:
+ * 触摸事件 -> dragBy -> doSetScale -> 监听器 -> 状态分发 -> centerView topView bottomView的属性,
+ * 以及松手后ScaleTransitionDriver逐帧推进的回弹和setState()的动画。
+ *
+ * 用Debug的线程分配计数统计一次300帧的手势。ScaleLayout没有attach到window,
+ * 合并move事件需要postOnAnimation, 所以这里关闭合并，每个move事件直接执行doSetScale()
+ */
+@RunWith(AndroidJUnit4.class)
+public class ScaleLayoutAllocationTest {
+
+    private static final int FRAMES = 300;
+    private static final int DRAG_FRAMES = 150;
+    private static final long FRAME = 16;
+
+    @Rule
+    public final UiThreadTestRule uiThread = new UiThreadTestRule();
+
+    private ScaleLayout layout;
+    private int step;
+    private float sink;
+    private int stateChanges;
+
+    /**
+     * 按下，拖动DRAG_FRAMES帧后松手，然后逐帧推进回弹和来回切换状态的动画，直到满FRAMES帧
+     * @return 下一帧的时间
+     */
+    private long gesture(long time) {
+        long downTime = time;
+        float y = 1200;
+        dispatch(downTime, time, MotionEvent.ACTION_DOWN, y);
+        for (int frame = 0; frame < DRAG_FRAMES; frame++) {
+            time += FRAME;
+            // 先上滑缩小，再往回拖一段，松手时停在中间并且有速度。
+            // 每个事件都超过touchSlop, 每一帧都会执行dragBy()
+            y += frame < DRAG_FRAMES * 2 / 3 ? -step : step;
+            dispatch(downTime, time, MotionEvent.ACTION_MOVE, y);
+        }
+        dispatch(downTime, time, MotionEvent.ACTION_UP, y);
+
+        int frames = DRAG_FRAMES;
+        while (frames < FRAMES) {
+            time += FRAME;
+            frames++;
+            if (!layout.stepTransition(time)) {
+                layout.setState(layout.isOpen() ? ScaleLayout.STATE_CLOSE : ScaleLayout.STATE_OPEN);
+            }
+        }
+        // 结束还在进行的动画，下一次手势从关闭状态开始
+        while (layout.stepTransition(time)) {
+            time += FRAME;
+        }
+        layout.setState(ScaleLayout.STATE_CLOSE, false);
+        return time + FRAME;
+    }
+
+    /**
+     * 和window分发的一样经过ViewGroup.dispatchTouchEvent(), 拦截之后交给onTouchEvent()
+     * MotionEvent.obtain()/recycle() 使用对象池，预热之后不会分配
+     */
+    private void dispatch(long downTime, long time, int action, float y) {
+        MotionEvent event = MotionEvent.obtain(downTime, time, action, ScaleLayouts.WIDTH / 2, y, 0);
+        layout.dispatchTouchEvent(event);
+        event.recycle();
+    }
+
+    @Test
+    @UiThreadTest
+    @SuppressWarnings("deprecation")
+    public void gestureDoesNotAllocate() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        step = ViewConfiguration.get(context).getScaledTouchSlop() + 2;
+        layout = ScaleLayouts.create(context);
+        layout.setFrameCoalesceEnable(false);
+        layout.addOnScaleChangedListener(new ScaleLayout.OnScaleChangedListener() {
+            @Override
+            public void onScaleChanged(float currentScale) {
+                sink += currentScale;
+            }
+        });
+        layout.addOnStateChangedListener(new ScaleLayout.OnStateChangedListener() {
+            @Override
+            public void onStateChanged(boolean state) {
+                stateChanges++;
+            }
+        });
+        ScaleLayouts.layout(layout);
+
+        // 第一次手势会创建VelocityTracker、ScaleSpring等只创建一次的对象
+        long time = gesture(SystemClock.uptimeMillis());
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        gesture(time);
+        Debug.stopAllocCounting();
+        int allocations = Debug.getThreadAllocCount();
+
+        assertEquals("objects allocated in " + FRAMES + " frames", 0, allocations);
+    }
+}
@@ -0,0 +1,63 @@
+package deadline.scalelayout;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.annotation.UiThreadTest;
+import android.support.test.rule.UiThreadTestRule;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 每帧的监听器在动画推进的同一帧内回调, 收到的是这一帧已经设置到view上的scale
+ */
+@RunWith(AndroidJUnit4.class)
+public class ScaleLayoutFrameListenerTest {
+
+    private static final long FRAME = 16;
+
+    @Rule
+    public final UiThreadTestRule uiThread = new UiThreadTestRule();
+
+    private int calls;
+    private float lastScale;
+
+    @Test
+    @UiThreadTest
+    public void frameListenerIsCalledInTheSameFrame() {
+        final ScaleLayout layout = ScaleLayouts.create(InstrumentationRegistry.getTargetContext());
+        ScaleLayouts.layout(layout);
+        layout.addOnFrameScaleChangedListener(new ScaleLayout.OnScaleChangedListener() {
+            @Override
+            public void onScaleChanged(float currentScale) {
+                calls++;
+                lastScale = currentScale;
+                // 回调时view的属性已经是这一帧的
+                assertEquals(currentScale, ScaleLayouts.center(layout).getScaleX(), 0f);
+            }
+        });
+
+        layout.setState(ScaleLayout.STATE_OPEN);
+        long time = 0;
+        int changes = 0;
+        float previous = layout.getCurrentScale();
+        boolean running = true;
+        while (running) {
+            running = layout.stepTransition(time);
+            if (layout.getCurrentScale() != previous) {
+                previous = layout.getCurrentScale();
+                changes++;
+            }
+            // 每次scale变化在stepTransition()返回之前回调一次
+            assertEquals("at " + time + "ms", changes, calls);
+            if (changes > 0) {
+                assertEquals(previous, lastScale, 0f);
+            }
+            time += FRAME;
+        }
+        assertEquals(layout.getMinScale(), lastScale, 0f);
+    }
+}
@@ -0,0 +1,145 @@
+package deadline.scalelayout;
+
+import android.content.Context;
+import android.graphics.drawable.ShapeDrawable;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.annotation.UiThreadTest;
+import android.support.test.rule.UiThreadTestRule;
+import android.support.test.runner.AndroidJUnit4;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.FrameLayout;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * ScaleLayout的测量次数: 每次测量每个子view只测量一次, 过渡期间不请求布局也不测量
+ */
+@RunWith(AndroidJUnit4.class)
+public class ScaleLayoutMeasureTest {
+
+    private static final long FRAME = 16;
+
+    @Rule
+    public final UiThreadTestRule uiThread = new UiThreadTestRule();
+
+    private Context context;
+    private ScaleLayout layout;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getTargetContext();
+    }
+
+    private void resetCounts() {
+        ScaleLayouts.top(layout).measureCount = 0;
+        ScaleLayouts.center(layout).measureCount = 0;
+        ScaleLayouts.bottom(layout).measureCount = 0;
+    }
+
+    private void assertMeasureCounts(String message, int expected) {
+        assertEquals(message + ", top", expected, ScaleLayouts.top(layout).measureCount);
+        assertEquals(message + ", center", expected, ScaleLayouts.center(layout).measureCount);
+        assertEquals(message + ", bottom", expected, ScaleLayouts.bottom(layout).measureCount);
+    }
+
+    @Test
+    @UiThreadTest
+    public void eachChildIsMeasuredOncePerPass() {
+        layout = ScaleLayouts.create(context);
+        ScaleLayouts.layout(layout);
+        assertMeasureCounts("first pass", 1);
+        assertEquals(ScaleLayouts.WIDTH, ScaleLayouts.center(layout).getMeasuredWidth());
+        assertEquals(ScaleLayouts.HEIGHT, ScaleLayouts.center(layout).getMeasuredHeight());
+
+        // MeasureSpec没有变化, 由View.measure()跳过
+        resetCounts();
+        ScaleLayouts.layout(layout);
+        assertMeasureCounts("same specs", 0);
+
+        // requestLayout之后每个子view仍然只测量一次
+        layout.requestLayout();
+        ScaleLayouts.layout(layout);
+        assertMeasureCounts("after requestLayout", 1);
+    }
+
+    /**
+     * 动画和拖动只修改view的属性, 每一帧都不会请求布局, 也就不会测量子view
+     */
+    private void assertTransitionDoesNotMeasure(boolean translation) {
+        layout = ScaleLayouts.create(context);
+        layout.setTranslationTransitionEnable(translation);
+        ScaleLayouts.layout(layout);
+        resetCounts();
+
+        long time = 0;
+        int frames = 0;
+        for (int state : new int[]{ScaleLayout.STATE_OPEN, ScaleLayout.STATE_CLOSE}) {
+            layout.setState(state);
+            while (layout.stepTransition(time)) {
+                time += FRAME;
+                frames++;
+                assertFalse("layout requested in frame " + frames, layout.isLayoutRequested());
+                // 和ViewRootImpl一样，每一帧遍历一次
+                ScaleLayouts.layout(layout);
+            }
+        }
+        assertFalse(layout.isOpen());
+        assertMeasureCounts(frames + " frames, translation " + translation, 0);
+    }
+
+    @Test
+    @UiThreadTest
+    public void transitionDoesNotMeasureChildren() {
+        assertTransitionDoesNotMeasure(false);
+        assertTransitionDoesNotMeasure(true);
+    }
+
+    /**
+     * 和FrameLayout一样, foreground的padding计入子view的可用空间
+     */
+    @Test
+    @UiThreadTest
+    public void foregroundPaddingIsApplied() {
+        layout = ScaleLayouts.create(context);
+        ShapeDrawable foreground = new ShapeDrawable();
+        foreground.setPadding(10, 20, 30, 40);
+        layout.setForeground(foreground);
+        ScaleLayouts.layout(layout);
+
+        View center = ScaleLayouts.center(layout);
+        assertEquals(ScaleLayouts.WIDTH - 40, center.getMeasuredWidth());
+        assertEquals(ScaleLayouts.HEIGHT - 60, center.getMeasuredHeight());
+        assertEquals(10, center.getLeft());
+        assertEquals(20, center.getTop());
+    }
+
+    /**
+     * 高度不是EXACTLY时, 所有match_parent的子view按ScaleLayout最终的高度再测量一次,
+     * 不只是topView和bottomView
+     */
+    @Test
+    @UiThreadTest
+    public void matchParentChildrenAreRemeasured() {
+        layout = ScaleLayouts.create(context);
+        ScaleLayouts.CountingView overlay = new ScaleLayouts.CountingView(context);
+        layout.addView(overlay, new FrameLayout.LayoutParams(
+                ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
+
+        layout.measure(View.MeasureSpec.makeMeasureSpec(ScaleLayouts.WIDTH, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(0, View.MeasureSpec.UNSPECIFIED));
+
+        // 最高的子view是topView
+        assertEquals(ScaleLayouts.TOP_HEIGHT, layout.getMeasuredHeight());
+        assertEquals(ScaleLayouts.TOP_HEIGHT, overlay.getMeasuredHeight());
+        assertEquals(ScaleLayouts.WIDTH, overlay.getMeasuredWidth());
+        assertEquals(ScaleLayouts.TOP_HEIGHT, ScaleLayouts.center(layout).getMeasuredHeight());
+        assertEquals(ScaleLayouts.TOP_HEIGHT, ScaleLayouts.top(layout).getMeasuredHeight());
+    }
+}
@@ -0,0 +1,77 @@
+package deadline.scalelayout;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.annotation.UiThreadTest;
+import android.support.test.rule.UiThreadTestRule;
+import android.support.test.runner.AndroidJUnit4;
+import android.view.MotionEvent;
+import android.view.ViewConfiguration;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * setProgress(): 第一次布局之前只记录, 拖动时不生效
+ */
+@RunWith(AndroidJUnit4.class)
+public class ScaleLayoutProgressTest {
+
+    @Rule
+    public final UiThreadTestRule uiThread = new UiThreadTestRule();
+
+    private static void dispatch(ScaleLayout layout, long time, int action, float y) {
+        MotionEvent event = MotionEvent.obtain(0, time, action, ScaleLayouts.WIDTH / 2, y, 0);
+        layout.dispatchTouchEvent(event);
+        event.recycle();
+    }
+
+    @Test
+    @UiThreadTest
+    public void progressBeforeLayoutIsAppliedOnFirstLayout() {
+        ScaleLayout layout = ScaleLayouts.create(InstrumentationRegistry.getTargetContext());
+        layout.setProgress(0.5f);
+        layout.setProgress(1f);
+        ScaleLayouts.layout(layout);
+
+        assertEquals(layout.getMinScale(), layout.getCurrentScale(), 0f);
+        assertEquals(layout.getMinScale(), ScaleLayouts.center(layout).getScaleX(), 0f);
+        assertTrue(layout.isOpen());
+        assertFalse(layout.isAnimating());
+
+        // 布局之后直接生效
+        layout.setProgress(0.5f);
+        assertEquals(0.5f, layout.getProgress(), 1e-4f);
+    }
+
+    @Test
+    @UiThreadTest
+    public void progressIsIgnoredWhileDragging() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        ScaleLayout layout = ScaleLayouts.create(context);
+        ScaleLayouts.layout(layout);
+        int step = ViewConfiguration.get(context).getScaledTouchSlop() + 2;
+
+        float y = 1200;
+        dispatch(layout, 0, MotionEvent.ACTION_DOWN, y);
+        for (int i = 1; i <= 5; i++) {
+            y -= step;
+            dispatch(layout, i * 16, MotionEvent.ACTION_MOVE, y);
+        }
+        float dragged = layout.getCurrentScale();
+        assertTrue(dragged < 1f);
+
+        layout.setProgress(0f);
+        assertEquals(dragged, layout.getCurrentScale(), 0f);
+
+        // 松手之后外部进度重新生效
+        dispatch(layout, 6 * 16, MotionEvent.ACTION_UP, y);
+        layout.setProgress(0f);
+        assertEquals(1f, layout.getCurrentScale(), 0f);
+    }
+}
@@ -0,0 +1,160 @@
+package deadline.scalelayout;
+
+import android.content.Context;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.annotation.UiThreadTest;
+import android.support.test.rule.UiThreadTestRule;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 恢复保存的状态和不带动画的setState()直接设置scale:
+ * 不开始动画，也不注册到ScaleTransitionDriver
+ */
+@RunWith(AndroidJUnit4.class)
+public class ScaleLayoutRestoreTest {
+
+    private static final float MIN_SCALE = 0.6f;
+
+    @Rule
+    public final UiThreadTestRule uiThread = new UiThreadTestRule();
+
+    private Context context;
+    private ScaleTransitionDriver driver;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getTargetContext();
+        driver = ScaleTransitionDriver.getInstance();
+    }
+
+    private ScaleLayout create() {
+        ScaleLayout layout = ScaleLayouts.create(context);
+        layout.setMinScale(MIN_SCALE);
+        return layout;
+    }
+
+    /**
+     * 和Activity重建一样经过Parcel
+     */
+    private static Parcelable save(ScaleLayout layout) {
+        Parcelable state = layout.onSaveInstanceState();
+        Parcel parcel = Parcel.obtain();
+        try {
+            state.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            return ScaleLayout.SavedState.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private void assertSettled(ScaleLayout layout, float scale, boolean open, int activeCount) {
+        assertEquals(scale, layout.getCurrentScale(), 0f);
+        assertEquals(scale, ScaleLayouts.center(layout).getScaleX(), 0f);
+        assertEquals(open, layout.isOpen());
+        assertFalse("animating", layout.isAnimating());
+        assertEquals("registered with the driver", activeCount, driver.getActiveCount());
+    }
+
+    @Test
+    @UiThreadTest
+    public void restoreOpenedStateSetsTheScaleDirectly() {
+        ScaleLayout source = create();
+        ScaleLayouts.layout(source);
+        source.setState(ScaleLayout.STATE_OPEN, false);
+        Parcelable state = save(source);
+
+        int activeCount = driver.getActiveCount();
+        ScaleLayout restored = create();
+        ScaleLayouts.layout(restored);
+        restored.onRestoreInstanceState(state);
+        assertSettled(restored, MIN_SCALE, true, activeCount);
+    }
+
+    @Test
+    @UiThreadTest
+    public void restoreClosedStateSetsTheScaleDirectly() {
+        ScaleLayout source = create();
+        ScaleLayouts.layout(source);
+        Parcelable state = save(source);
+
+        int activeCount = driver.getActiveCount();
+        ScaleLayout restored = create();
+        ScaleLayouts.layout(restored);
+        restored.setState(ScaleLayout.STATE_OPEN, false);
+        restored.onRestoreInstanceState(state);
+        assertSettled(restored, 1f, false, activeCount);
+    }
+
+    /**
+     * 还没有测量时恢复, 在第一次布局时直接设置
+     */
+    @Test
+    @UiThreadTest
+    public void restoreBeforeLayoutIsAppliedOnFirstLayout() {
+        ScaleLayout source = create();
+        ScaleLayouts.layout(source);
+        source.setState(ScaleLayout.STATE_OPEN, false);
+        Parcelable state = save(source);
+
+        int activeCount = driver.getActiveCount();
+        ScaleLayout restored = create();
+        restored.onRestoreInstanceState(state);
+        ScaleLayouts.layout(restored);
+        assertSettled(restored, MIN_SCALE, true, activeCount);
+    }
+
+    /**
+     * 正在动画时保存, 恢复的是动画的终点
+     */
+    @Test
+    @UiThreadTest
+    public void restoreDuringTweenJumpsToItsTarget() {
+        ScaleLayout source = create();
+        ScaleLayouts.layout(source);
+        source.setState(ScaleLayout.STATE_OPEN);
+        assertTrue(source.isAnimating());
+        source.stepTransition(0);
+        source.stepTransition(100);
+        Parcelable state = save(source);
+        source.setState(ScaleLayout.STATE_CLOSE, false);
+
+        int activeCount = driver.getActiveCount();
+        ScaleLayout restored = create();
+        ScaleLayouts.layout(restored);
+        restored.onRestoreInstanceState(state);
+        assertSettled(restored, MIN_SCALE, true, activeCount);
+    }
+
+    /**
+     * 不带动画的setState()停止正在进行的动画
+     */
+    @Test
+    @UiThreadTest
+    public void setStateWithoutAnimationStopsTheTween() {
+        ScaleLayout layout = create();
+        ScaleLayouts.layout(layout);
+        int activeCount = driver.getActiveCount();
+
+        layout.setState(ScaleLayout.STATE_OPEN);
+        layout.stepTransition(0);
+        layout.stepTransition(100);
+        layout.setState(ScaleLayout.STATE_CLOSE, false);
+        assertSettled(layout, 1f, false, activeCount);
+
+        // 被停止的动画不会再推进
+        assertFalse(layout.stepTransition(200));
+        assertEquals(1f, layout.getCurrentScale(), 0f);
+    }
+}
@@ -0,0 +1,99 @@
+package deadline.scalelayout;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.view.Gravity;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.FrameLayout;
+
+/**
+ * 测试用的ScaleLayout: 和布局文件中一样的 top center bottom 三个子view,
+ * 不依赖Activity, 按固定的尺寸测量和布局
+ */
+final class ScaleLayouts {
+
+    static final int WIDTH = 1080;
+    static final int HEIGHT = 1920;
+    static final int TOP_HEIGHT = 168;
+    static final int BOTTOM_HEIGHT = 144;
+
+    private ScaleLayouts() {
+    }
+
+    /**
+     * 记录onMeasure和onDraw次数的子view
+     */
+    static class CountingView extends View {
+
+        int measureCount;
+        int drawCount;
+
+        CountingView(Context context) {
+            super(context);
+        }
+
+        @Override
+        protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+            measureCount++;
+            super.onMeasure(widthMeasureSpec, heightMeasureSpec);
+        }
+
+        @Override
+        public void draw(Canvas canvas) {
+            drawCount++;
+            super.draw(canvas);
+        }
+    }
+
+    static ScaleLayout create(Context context) {
+        return create(new ScaleLayout(context));
+    }
+
+    /**
+     * 和从xml加载一样设置id后调用onFinishInflate()
+     * @param layout 可以是记录绘制次数等的子类
+     */
+    static ScaleLayout create(ScaleLayout layout) {
+        Context context = layout.getContext();
+        View top = new CountingView(context);
+        View center = new CountingView(context);
+        View bottom = new CountingView(context);
+
+        top.setId(R.id.scaleLayout_top);
+        layout.addView(top, new FrameLayout.LayoutParams(
+                ViewGroup.LayoutParams.MATCH_PARENT, TOP_HEIGHT, Gravity.TOP));
+
+        bottom.setId(R.id.scaleLayout_bottom);
+        layout.addView(bottom, new FrameLayout.LayoutParams(
+                ViewGroup.LayoutParams.MATCH_PARENT, BOTTOM_HEIGHT, Gravity.BOTTOM));
+
+        center.setId(R.id.scaleLayout_center);
+        layout.addView(center, new FrameLayout.LayoutParams(
+                ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.WRAP_CONTENT, Gravity.CENTER));
+
+        layout.onFinishInflate();
+        return layout;
+    }
+
+    /**
+     * 和ViewRootImpl的一次遍历一样: 需要时测量, 然后布局
+     */
+    static void layout(View view) {
+        view.measure(View.MeasureSpec.makeMeasureSpec(WIDTH, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(HEIGHT, View.MeasureSpec.EXACTLY));
+        view.layout(0, 0, WIDTH, HEIGHT);
+    }
+
+    static CountingView top(ScaleLayout layout) {
+        return (CountingView) layout.findViewById(R.id.scaleLayout_top);
+    }
+
+    static CountingView center(ScaleLayout layout) {
+        return (CountingView) layout.findViewById(R.id.scaleLayout_center);
+    }
+
+    static CountingView bottom(ScaleLayout layout) {
+        return (CountingView) layout.findViewById(R.id.scaleLayout_bottom);
+    }
+}
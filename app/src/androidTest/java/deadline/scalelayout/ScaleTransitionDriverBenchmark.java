@@ -0,0 +1,158 @@
+package deadline.scalelayout;
+
+import android.app.Instrumentation;
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.view.Gravity;
+import android.view.ViewGroup;
+import android.widget.FrameLayout;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 200个ScaleLayout同时过渡时ScaleTransitionDriver每帧的耗时, 以及每个ScaleLayout占用的内存
+ *
+ * ScaleLayout没有attach到window, 只统计推进动画和设置子view属性的耗时, 不包括绘制。
+ * 内存按同样的三个子view, 和同样数量的FrameLayout比较
+ */
+@RunWith(AndroidJUnit4.class)
+public class ScaleTransitionDriverBenchmark {
+
+    private static final int INSTANCES = 200;
+    private static final long TIMEOUT = 10000;
+
+    private Instrumentation instrumentation;
+    private Context context;
+    private ScaleTransitionDriver driver;
+
+    private final ArrayList<ViewGroup> layouts = new ArrayList<>(INSTANCES);
+
+    @Before
+    public void setUp() {
+        instrumentation = InstrumentationRegistry.getInstrumentation();
+        context = InstrumentationRegistry.getTargetContext();
+        driver = ScaleTransitionDriver.getInstance();
+    }
+
+    private int activeCount() {
+        final int[] count = new int[1];
+        instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                count[0] = driver.getActiveCount();
+            }
+        });
+        return count[0];
+    }
+
+    private void awaitIdle() {
+        long deadline = SystemClock.uptimeMillis() + TIMEOUT;
+        while (activeCount() > 0) {
+            if (SystemClock.uptimeMillis() > deadline) {
+                fail("transitions did not finish in " + TIMEOUT + "ms");
+            }
+            SystemClock.sleep(50);
+        }
+    }
+
+    private void createScaleLayouts() {
+        instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < INSTANCES; i++) {
+                    ScaleLayout layout = ScaleLayouts.create(context);
+                    ScaleLayouts.layout(layout);
+                    layouts.add(layout);
+                }
+            }
+        });
+    }
+
+    /**
+     * 和ScaleLayouts.create()同样的子view和LayoutParams
+     */
+    private void createFrameLayouts() {
+        instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < INSTANCES; i++) {
+                    FrameLayout layout = new FrameLayout(context);
+                    layout.addView(new ScaleLayouts.CountingView(context), new FrameLayout.LayoutParams(
+                            ViewGroup.LayoutParams.MATCH_PARENT, ScaleLayouts.TOP_HEIGHT, Gravity.TOP));
+                    layout.addView(new ScaleLayouts.CountingView(context), new FrameLayout.LayoutParams(
+                            ViewGroup.LayoutParams.MATCH_PARENT, ScaleLayouts.BOTTOM_HEIGHT, Gravity.BOTTOM));
+                    layout.addView(new ScaleLayouts.CountingView(context), new FrameLayout.LayoutParams(
+                            ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.WRAP_CONTENT, Gravity.CENTER));
+                    ScaleLayouts.layout(layout);
+                    layouts.add(layout);
+                }
+            }
+        });
+    }
+
+    private void setStateOfAll(final int state) {
+        instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                driver.resetFrameStats();
+                for (ViewGroup layout : layouts) {
+                    ((ScaleLayout) layout).setState(state);
+                }
+            }
+        });
+    }
+
+    @Test
+    public void settle200Instances() {
+        awaitIdle();
+
+        // 动画结束之后的ScaleLayout, 包括按需创建的对象
+        long before = BenchmarkResults.usedMemoryAfterGc();
+        createScaleLayouts();
+        setStateOfAll(ScaleLayout.STATE_OPEN);
+        awaitIdle();
+        long scaleLayoutBytes = BenchmarkResults.usedMemoryAfterGc() - before;
+
+        // 第一次已经预热, 统计第二次同时过渡
+        setStateOfAll(ScaleLayout.STATE_CLOSE);
+        assertEquals(INSTANCES, activeCount());
+        awaitIdle();
+        final long[] stats = new long[2];
+        instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                stats[0] = driver.getFrameCount();
+                stats[1] = driver.getTotalFrameCostNanos();
+            }
+        });
+        long frames = stats[0];
+        assertTrue("no frames were stepped", frames > 0);
+        double frameCostMillis = stats[1] / 1e6 / frames;
+
+        layouts.clear();
+        before = BenchmarkResults.usedMemoryAfterGc();
+        createFrameLayouts();
+        long frameLayoutBytes = BenchmarkResults.usedMemoryAfterGc() - before;
+        layouts.clear();
+
+        new BenchmarkResults("driver")
+                .put("instances", INSTANCES)
+                .put("frames", frames)
+                .put("frameCostMillis", frameCostMillis)
+                .put("frameCostPerInstanceMicros", frameCostMillis * 1000 / INSTANCES)
+                .put("bytesPerScaleLayout", scaleLayoutBytes / INSTANCES)
+                .put("bytesPerFrameLayout", frameLayoutBytes / INSTANCES)
+                .put("extraBytesPerInstance", (scaleLayoutBytes - frameLayoutBytes) / INSTANCES)
+                .report();
+    }
+}
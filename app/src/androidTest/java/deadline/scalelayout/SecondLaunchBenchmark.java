@@ -0,0 +1,134 @@
+package deadline.scalelayout;
+
+import android.app.Instrumentation;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 第二次启动时显示第一张图片的时间: 从SampledImageLoader.load()到回调拿到bitmap
+ *
+ * 第一次启动: 内存缓存、记住的图片尺寸和磁盘缓存都是空的, 完整解码并降采样;
+ * 第二次启动: 进程重启后内存中的都没有了, 从磁盘缓存读取已经降采样的图片。
+ * 两种情况都清空BitmapPool, 不复用bitmap
+ */
+@RunWith(AndroidJUnit4.class)
+public class SecondLaunchBenchmark {
+
+    private static final int RUNS = 7;
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 1920;
+    private static final float MAX_ZOOM = 3f;
+    private static final long TIMEOUT = 10000;
+
+    private Instrumentation instrumentation;
+    private Context context;
+    private BitmapDiskCache diskCache;
+
+    @Before
+    public void setUp() {
+        instrumentation = InstrumentationRegistry.getInstrumentation();
+        context = InstrumentationRegistry.getTargetContext();
+        diskCache = BitmapDiskCache.getInstance(context);
+        assertNotNull("disk cache unavailable", diskCache);
+    }
+
+    /**
+     * 和进程重启一样丢掉内存中的状态
+     */
+    private static void restart() {
+        BitmapMemoryCache.getInstance().clear();
+        BitmapPool.getInstance().clear();
+        SampledImageLoader.clearImageSizes();
+    }
+
+    /**
+     * @return 从load()到回调的时间, 毫秒
+     */
+    private double timeToFirstImage() throws InterruptedException {
+        final CountDownLatch loaded = new CountDownLatch(1);
+        final Bitmap[] result = new Bitmap[1];
+        final long[] start = new long[1];
+        instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                start[0] = System.nanoTime();
+                SampledImageLoader.load(context, R.mipmap.image_1, null, WIDTH, HEIGHT, MAX_ZOOM, false,
+                        new SampledImageLoader.Callback() {
+                            @Override
+                            public void onLoaded(Bitmap bitmap) {
+                                result[0] = bitmap;
+                                loaded.countDown();
+                            }
+                        });
+            }
+        });
+        if (!loaded.await(TIMEOUT, TimeUnit.MILLISECONDS)) {
+            fail("image was not loaded in " + TIMEOUT + "ms");
+        }
+        double millis = (System.nanoTime() - start[0]) / 1e6;
+        assertNotNull("image was not decoded", result[0]);
+        BitmapPool.getInstance().release(result[0]);
+        return millis;
+    }
+
+    /**
+     * 写磁盘缓存在后台进行, 等它完成
+     */
+    private void awaitDiskWrite() {
+        long deadline = SystemClock.uptimeMillis() + TIMEOUT;
+        while (diskCache.size() == 0) {
+            if (SystemClock.uptimeMillis() > deadline) {
+                fail("decode was not written to the disk cache in " + TIMEOUT + "ms");
+            }
+            SystemClock.sleep(10);
+        }
+    }
+
+    private static double median(double[] values) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    @Test
+    public void secondLaunchReadsFromDisk() throws InterruptedException {
+        double[] first = new double[RUNS];
+        double[] second = new double[RUNS];
+        for (int i = 0; i < RUNS; i++) {
+            restart();
+            diskCache.clear();
+            first[i] = timeToFirstImage();
+            awaitDiskWrite();
+
+            restart();
+            second[i] = timeToFirstImage();
+        }
+
+        double firstLaunch = median(first);
+        double secondLaunch = median(second);
+        new BenchmarkResults("launch")
+                .put("runs", RUNS)
+                .put("firstLaunchMillis", firstLaunch)
+                .put("secondLaunchMillis", secondLaunch)
+                .put("speedup", firstLaunch / secondLaunch)
+                .report();
+
+        assertTrue("second launch " + secondLaunch + "ms, first " + firstLaunch + "ms",
+                secondLaunch < firstLaunch);
+    }
+}
@@ -0,0 +1,175 @@
+package deadline.scalelayout;
+
+import android.annotation.TargetApi;
+import android.app.Instrumentation;
+import android.content.Context;
+import android.graphics.Canvas;
+import android.os.Build;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.rule.ActivityTestRule;
+import android.support.test.runner.AndroidJUnit4;
+import android.view.ViewTreeObserver;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * 在window中显示的ScaleLayout打开再关闭一次, 比较两种过渡方式每帧的绘制:
+ * setTop()/setBottom() 每帧都让topView bottomView重新绘制, ScaleLayout重新记录;
+ * translationY/alpha 只修改RenderNode的属性, 不需要重新绘制
+ *
+ * ScaleLayout的重新记录次数就是到达它的invalidate次数
+ */
+@RunWith(AndroidJUnit4.class)
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+public class TranslationTransitionBenchmark {
+
+    private static final long TIMEOUT = 10000;
+
+    @Rule
+    public final ActivityTestRule<ScaleActivity> activityRule = new ActivityTestRule<>(ScaleActivity.class);
+
+    private Instrumentation instrumentation;
+    private CountingScaleLayout layout;
+    private int frames;
+
+    /**
+     * 记录dispatchDraw, 也就是重新记录子view绘制的次数
+     */
+    static class CountingScaleLayout extends ScaleLayout {
+
+        int dispatchDrawCount;
+
+        CountingScaleLayout(Context context) {
+            super(context);
+        }
+
+        @Override
+        protected void dispatchDraw(Canvas canvas) {
+            dispatchDrawCount++;
+            super.dispatchDraw(canvas);
+        }
+    }
+
+    private final ViewTreeObserver.OnDrawListener frameCounter = new ViewTreeObserver.OnDrawListener() {
+        @Override
+        public void onDraw() {
+            frames++;
+        }
+    };
+
+    @Before
+    public void setUp() {
+        // ViewTreeObserver.OnDrawListener
+        assumeTrue(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN);
+        instrumentation = InstrumentationRegistry.getInstrumentation();
+        instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                ScaleActivity activity = activityRule.getActivity();
+                layout = new CountingScaleLayout(activity);
+                ScaleLayouts.create(layout);
+                activity.setContentView(layout);
+            }
+        });
+        instrumentation.waitForIdleSync();
+    }
+
+    private boolean isAnimating() {
+        final boolean[] animating = new boolean[1];
+        instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                animating[0] = layout.isAnimating();
+            }
+        });
+        return animating[0];
+    }
+
+    private void runState(final int state) {
+        instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                layout.setState(state);
+            }
+        });
+        long deadline = SystemClock.uptimeMillis() + TIMEOUT;
+        while (isAnimating()) {
+            if (SystemClock.uptimeMillis() > deadline) {
+                fail("transition did not finish in " + TIMEOUT + "ms");
+            }
+            SystemClock.sleep(20);
+        }
+        // 最后一帧的绘制
+        instrumentation.waitForIdleSync();
+    }
+
+    /**
+     * @return {帧数, topView和bottomView的绘制次数, ScaleLayout的重新记录次数}
+     */
+    private int[] measure(final boolean translation) {
+        instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                layout.setTranslationTransitionEnable(translation);
+            }
+        });
+        instrumentation.waitForIdleSync();
+
+        instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                frames = 0;
+                layout.dispatchDrawCount = 0;
+                ScaleLayouts.top(layout).drawCount = 0;
+                ScaleLayouts.bottom(layout).drawCount = 0;
+                layout.getViewTreeObserver().addOnDrawListener(frameCounter);
+            }
+        });
+
+        runState(ScaleLayout.STATE_OPEN);
+        runState(ScaleLayout.STATE_CLOSE);
+
+        final int[] counts = new int[3];
+        instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                layout.getViewTreeObserver().removeOnDrawListener(frameCounter);
+                counts[0] = frames;
+                counts[1] = ScaleLayouts.top(layout).drawCount + ScaleLayouts.bottom(layout).drawCount;
+                counts[2] = layout.dispatchDrawCount;
+            }
+        });
+        return counts;
+    }
+
+    private static void report(String mode, int[] counts) {
+        int frames = Math.max(1, counts[0]);
+        new BenchmarkResults("transition." + mode)
+                .put("frames", counts[0])
+                .put("decorationDrawsPerFrame", counts[1] / (double) frames)
+                .put("parentRecordsPerFrame", counts[2] / (double) frames)
+                .report();
+    }
+
+    @Test
+    public void translationDrawsLessThanLayoutBounds() {
+        int[] bounds = measure(false);
+        int[] translation = measure(true);
+        report("bounds", bounds);
+        report("translation", translation);
+
+        assertTrue("no frames were drawn", bounds[0] > 0 && translation[0] > 0);
+        assertTrue("decoration draws: translation " + translation[1] + ", bounds " + bounds[1],
+                translation[1] * bounds[0] < bounds[1] * translation[0]);
+        assertTrue("parent records: translation " + translation[2] + ", bounds " + bounds[2],
+                translation[2] * bounds[0] <= bounds[2] * translation[0]);
+    }
+}
@@ -0,0 +1,516 @@
+package deadline.scalelayout;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Disk cache of bitmaps already decoded and downsampled by {@link SampledImageLoader}, so the next
+ * launch shows an image without decoding the original again.
+ *
+ * Each entry holds the raw pixels behind a small header and is read and written through memory
+ * mapped files, which is much cheaper than decoding and downsampling a large JPEG. The cache is
+ * bounded in bytes and evicts the least recently used entries. A journal records every change:
+ * an entry is only used once its file has been completely written and renamed into place, so a
+ * crash mid write leaves nothing behind but a file that is deleted on the next start.
+ *
+ * Reads happen on the caller's thread and must not be done on the main thread; writes run on a
+ * background executor.
+ */
+public final class BitmapDiskCache {
+
+    private static final String TAG = "BitmapDiskCache";
+
+    private static final String DIRECTORY = "scalelayout-bitmaps";
+    private static final long MAX_BYTES = 64 * 1024 * 1024;
+
+    private static final String JOURNAL = "journal";
+    private static final String JOURNAL_TMP = "journal.tmp";
+    private static final String JOURNAL_MAGIC = "deadline.scalelayout.BitmapDiskCache";
+    private static final int JOURNAL_VERSION = 1;
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static final String CLEAN = "CLEAN";
+    private static final String DIRTY = "DIRTY";
+    private static final String REMOVE = "REMOVE";
+    private static final String READ = "READ";
+
+    /**
+     * The journal is rewritten once it holds this many lines that no longer describe an entry.
+     */
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+    //
+    // Entry header: magic, width, height, row bytes, config, has alpha.
+    //
+    private static final int ENTRY_MAGIC = 0x53434c42;
+    private static final int HEADER_SIZE = 6 * 4;
+
+    private static BitmapDiskCache sInstance;
+    private static boolean sOpenFailed;
+    private static Executor sWriteExecutor;
+
+    private final File directory;
+    private final long maxBytes;
+    private long size;
+
+    /**
+     * Entry sizes by file name, in access order.
+     */
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Entries being written.
+     */
+    private final HashSet<String> writing = new HashSet<>();
+
+    private Writer journalWriter;
+    private int redundantOpCount;
+
+    private int hitCount;
+    private int missCount;
+    private int evictionCount;
+
+    /**
+     * Open the cache in the app's cache directory. Reads the journal, so must not be called on the
+     * main thread.
+     *
+     * @return the cache, or null if the cache directory is not usable
+     */
+    public static synchronized BitmapDiskCache getInstance(Context context) {
+        if (sInstance == null && !sOpenFailed) {
+            File directory = new File(context.getApplicationContext().getCacheDir(), DIRECTORY);
+            BitmapDiskCache cache = new BitmapDiskCache(directory, MAX_BYTES);
+            try {
+                cache.open();
+                sInstance = cache;
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to open " + directory, e);
+                sOpenFailed = true;
+            }
+        }
+        return sInstance;
+    }
+
+    private BitmapDiskCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Entries outlive the process, so the key also names the version of the source: a changed
+     * file or an updated app must not be served the pixels of what it replaced.
+     *
+     * @param key     identifies the decode, see {@link BitmapMemoryCache#key(String, int)}
+     * @param version version of the source, e.g. its size and modification time
+     * @param config  config the bitmap was decoded with
+     */
+    static String key(String key, String version, Bitmap.Config config) {
+        return key + "@" + version + "/" + config;
+    }
+
+    private void open() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        File journal = new File(directory, JOURNAL);
+        if (journal.exists()) {
+            try {
+                readJournal(journal);
+            } catch (IOException e) {
+                //
+                // Unreadable journal: nothing in the directory can be trusted.
+                //
+                Log.w(TAG, "Discarding corrupt journal", e);
+                deleteContents();
+                entries.clear();
+                size = 0;
+            }
+        }
+        rebuildJournal();
+    }
+
+    private void readJournal(File journal) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journal), "US-ASCII"));
+        HashSet<String> dirty = new HashSet<>();
+        int lineCount = 0;
+        try {
+            String header = reader.readLine();
+            if (!(JOURNAL_MAGIC + " " + JOURNAL_VERSION).equals(header)) {
+                throw new IOException("Unexpected journal header " + header);
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineCount++;
+                String[] parts = line.split(" ");
+                if (parts.length < 2) {
+                    //
+                    // Truncated last line of a crash, ignore it.
+                    //
+                    continue;
+                }
+                String name = parts[1];
+                if (CLEAN.equals(parts[0]) && parts.length == 3) {
+                    dirty.remove(name);
+                    Long previous = entries.put(name, Long.parseLong(parts[2]));
+                    if (previous != null) {
+                        size -= previous;
+                    }
+                    size += entries.get(name);
+                } else if (DIRTY.equals(parts[0])) {
+                    dirty.add(name);
+                } else if (REMOVE.equals(parts[0])) {
+                    Long previous = entries.remove(name);
+                    if (previous != null) {
+                        size -= previous;
+                    }
+                } else if (READ.equals(parts[0])) {
+                    entries.get(name);
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed journal line", e);
+        } finally {
+            reader.close();
+        }
+
+        //
+        // Writes that never completed, and entries whose file is gone or has the wrong size.
+        //
+        for (String name : dirty) {
+            Long previous = entries.remove(name);
+            if (previous != null) {
+                size -= previous;
+            }
+            deleteFile(new File(directory, name));
+        }
+        for (Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Long> entry = it.next();
+            if (new File(directory, entry.getKey()).length() != entry.getValue()) {
+                size -= entry.getValue();
+                deleteFile(new File(directory, entry.getKey()));
+                it.remove();
+            }
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(TMP_SUFFIX)) {
+                    deleteFile(file);
+                }
+            }
+        }
+        redundantOpCount = lineCount - entries.size();
+    }
+
+    /**
+     * Write a journal holding only the current entries, then swap it in.
+     */
+    private void rebuildJournal() throws IOException {
+        if (journalWriter != null) {
+            journalWriter.close();
+        }
+        File tmp = new File(directory, JOURNAL_TMP);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "US-ASCII"));
+        try {
+            writer.write(JOURNAL_MAGIC + " " + JOURNAL_VERSION + "\n");
+            for (Map.Entry<String, Long> entry : entries.entrySet()) {
+                writer.write(CLEAN + " " + entry.getKey() + " " + entry.getValue() + "\n");
+            }
+            for (String name : writing) {
+                writer.write(DIRTY + " " + name + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        if (!tmp.renameTo(new File(directory, JOURNAL))) {
+            throw new IOException("Unable to replace journal");
+        }
+        journalWriter = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(new File(directory, JOURNAL), true), "US-ASCII"));
+        redundantOpCount = 0;
+    }
+
+    /**
+     * Read a cached decode, reusing a pooled bitmap when possible.
+     *
+     * @return the bitmap, or null if it is not cached
+     */
+    Bitmap get(String key) {
+        String name = fileName(key);
+        synchronized (this) {
+            if (entries.get(name) == null) {
+                missCount++;
+                return null;
+            }
+            hitCount++;
+            journal(READ + " " + name);
+        }
+
+        Bitmap bitmap = null;
+        try {
+            bitmap = read(new File(directory, name));
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read " + key, e);
+        } catch (OutOfMemoryError e) {
+            Log.w(TAG, "Out of memory reading " + key);
+            return null;
+        }
+        if (bitmap == null) {
+            synchronized (this) {
+                removeEntry(name);
+            }
+        }
+        return bitmap;
+    }
+
+    private static Bitmap read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long length = channel.size();
+            if (length < HEADER_SIZE) {
+                return null;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            if (buffer.getInt() != ENTRY_MAGIC) {
+                return null;
+            }
+            int width = buffer.getInt();
+            int height = buffer.getInt();
+            int rowBytes = buffer.getInt();
+            int configOrdinal = buffer.getInt();
+            boolean hasAlpha = buffer.getInt() != 0;
+
+            Bitmap.Config[] configs = Bitmap.Config.values();
+            if (width <= 0 || height <= 0 || configOrdinal < 0 || configOrdinal >= configs.length
+                    || length != HEADER_SIZE + (long) rowBytes * height) {
+                return null;
+            }
+            Bitmap.Config config = configs[configOrdinal];
+            Bitmap bitmap = obtainBitmap(width, height, config);
+            if (bitmap.getRowBytes() != rowBytes) {
+                BitmapPool.getInstance().put(bitmap);
+                return null;
+            }
+            bitmap.copyPixelsFromBuffer(buffer);
+            bitmap.setHasAlpha(hasAlpha);
+            return bitmap;
+
+        } finally {
+            raf.close();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static Bitmap obtainBitmap(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = BitmapPool.getInstance().get(width, height, config);
+        if (bitmap != null) {
+            try {
+                bitmap.reconfigure(width, height, config);
+                return bitmap;
+            } catch (IllegalArgumentException e) {
+                BitmapPool.getInstance().put(bitmap);
+            }
+        }
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Store a decode in the background. The bitmap is retained until it has been written, so it
+     * is not reused in the meantime.
+     */
+    void put(String key, final Bitmap bitmap) {
+        if (bitmap == null || bitmap.getConfig() == null) {
+            return;
+        }
+        final String name = fileName(key);
+        synchronized (this) {
+            if (entries.containsKey(name) || !writing.add(name)) {
+                return;
+            }
+            journal(DIRTY + " " + name);
+        }
+
+        BitmapPool.getInstance().retain(bitmap);
+        getWriteExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                long length = -1;
+                File file = new File(directory, name);
+                File tmp = new File(directory, name + TMP_SUFFIX);
+                try {
+                    write(tmp, bitmap);
+                    if (tmp.renameTo(file)) {
+                        length = file.length();
+                    }
+                } catch (IOException e) {
+                    Log.w(TAG, "Unable to write " + file, e);
+                } finally {
+                    BitmapPool.getInstance().release(bitmap);
+                }
+
+                synchronized (BitmapDiskCache.this) {
+                    writing.remove(name);
+                    if (length > 0) {
+                        entries.put(name, length);
+                        size += length;
+                        journal(CLEAN + " " + name + " " + length);
+                        trimToSize();
+                    } else {
+                        deleteFile(tmp);
+                        deleteFile(file);
+                        journal(REMOVE + " " + name);
+                    }
+                }
+            }
+        });
+    }
+
+    private static void write(File file, Bitmap bitmap) throws IOException {
+        int rowBytes = bitmap.getRowBytes();
+        long length = HEADER_SIZE + (long) rowBytes * bitmap.getHeight();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            buffer.putInt(ENTRY_MAGIC);
+            buffer.putInt(bitmap.getWidth());
+            buffer.putInt(bitmap.getHeight());
+            buffer.putInt(rowBytes);
+            buffer.putInt(bitmap.getConfig().ordinal());
+            buffer.putInt(bitmap.hasAlpha() ? 1 : 0);
+            bitmap.copyPixelsToBuffer(buffer);
+            //
+            // The entry only becomes visible through the rename after this, so it must be on disk.
+            //
+            buffer.force();
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void trimToSize() {
+        while (size > maxBytes && !entries.isEmpty()) {
+            removeEntry(entries.keySet().iterator().next());
+            evictionCount++;
+        }
+    }
+
+    private void removeEntry(String name) {
+        Long length = entries.remove(name);
+        if (length == null) {
+            return;
+        }
+        size -= length;
+        deleteFile(new File(directory, name));
+        journal(REMOVE + " " + name);
+    }
+
+    /**
+     * Append a line to the journal, compacting it when it has grown mostly redundant.
+     */
+    private void journal(String line) {
+        if (journalWriter == null) {
+            return;
+        }
+        try {
+            journalWriter.write(line + "\n");
+            journalWriter.flush();
+            if (!line.startsWith(CLEAN) && ++redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
+                    && redundantOpCount >= entries.size()) {
+                rebuildJournal();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write journal", e);
+        }
+    }
+
+    private static void deleteFile(File file) {
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Unable to delete " + file);
+        }
+    }
+
+    private void deleteContents() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                deleteFile(file);
+            }
+        }
+    }
+
+    private static String fileName(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static synchronized Executor getWriteExecutor() {
+        if (sWriteExecutor == null) {
+            sWriteExecutor = Executors.newSingleThreadExecutor();
+        }
+        return sWriteExecutor;
+    }
+
+    /**
+     * Delete every entry.
+     */
+    public synchronized void clear() {
+        for (String name : entries.keySet().toArray(new String[entries.size()])) {
+            removeEntry(name);
+        }
+    }
+
+    public synchronized long size() {
+        return size;
+    }
+
+    public long maxSize() {
+        return maxBytes;
+    }
+
+    public synchronized int hitCount() {
+        return hitCount;
+    }
+
+    public synchronized int missCount() {
+        return missCount;
+    }
+
+    public synchronized int evictionCount() {
+        return evictionCount;
+    }
+}
@@ -0,0 +1,129 @@
+package deadline.scalelayout;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.support.v4.util.LruCache;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Process wide LRU cache of decoded bitmaps shared by every {@link TouchImageView}, keyed by
+ * image source and sample size. The size is bounded by a fraction of the heap, so paging back
+ * and forth through a gallery is served from memory without letting the heap grow.
+ *
+ * Bitmaps in the cache may be displayed by several views at once and must not be recycled by
+ * their users. Evicted bitmaps that no view displays go to {@link BitmapPool} for reuse.
+ * Call {@link #trimMemory(int)} from {@code onTrimMemory} to release memory when the system
+ * asks for it.
+ */
+public final class BitmapMemoryCache {
+
+    /**
+     * Fraction of the max heap used by the cache.
+     */
+    private static final int HEAP_FRACTION = 8;
+
+    private static BitmapMemoryCache sInstance;
+
+    private final LruCache<String, Bitmap> cache;
+
+    /**
+     * The bitmaps currently in the cache, by identity.
+     */
+    private final Set<Bitmap> cached = Collections.newSetFromMap(new IdentityHashMap<Bitmap, Boolean>());
+
+    public static synchronized BitmapMemoryCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new BitmapMemoryCache((int) (Runtime.getRuntime().maxMemory() / HEAP_FRACTION));
+        }
+        return sInstance;
+    }
+
+    private BitmapMemoryCache(int maxBytes) {
+        cache = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getRowBytes() * value.getHeight();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+                if (oldValue != newValue) {
+                    cached.remove(oldValue);
+                    BitmapPool.getInstance().put(oldValue);
+                }
+            }
+        };
+    }
+
+    /**
+     * @param source     identifies the image, e.g. its uri
+     * @param sampleSize sample size the image was decoded with
+     */
+    static String key(String source, int sampleSize) {
+        return source + "@" + sampleSize;
+    }
+
+    /**
+     * Look up a bitmap and {@link BitmapPool#retain(Bitmap) retain} it in one step, so it can not
+     * be evicted into the pool in between. The caller must release it when it stops displaying it.
+     */
+    synchronized Bitmap acquire(String key) {
+        Bitmap bitmap = cache.get(key);
+        BitmapPool.getInstance().retain(bitmap);
+        return bitmap;
+    }
+
+    synchronized void put(String key, Bitmap bitmap) {
+        if (key != null && bitmap != null) {
+            cached.add(bitmap);
+            cache.put(key, bitmap);
+        }
+    }
+
+    synchronized boolean contains(Bitmap bitmap) {
+        return cached.contains(bitmap);
+    }
+
+    /**
+     * Release memory according to an {@code onTrimMemory} level: everything once the app is in
+     * the background or memory is critical, half of the cache while it is merely running low.
+     *
+     * @param level level passed to {@link ComponentCallbacks2#onTrimMemory(int)}
+     */
+    public synchronized void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            cache.evictAll();
+
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            cache.trimToSize(cache.maxSize() / 2);
+        }
+    }
+
+    public synchronized void clear() {
+        cache.evictAll();
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    public int maxSize() {
+        return cache.maxSize();
+    }
+
+    public int hitCount() {
+        return cache.hitCount();
+    }
+
+    public int missCount() {
+        return cache.missCount();
+    }
+
+    public int evictionCount() {
+        return cache.evictionCount();
+    }
+}
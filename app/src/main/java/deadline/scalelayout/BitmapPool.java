@@ -0,0 +1,231 @@
+package deadline.scalelayout;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Pool of bitmaps that are no longer displayed, bucketed by allocation size, so new decodes can
+ * reuse their memory through {@link android.graphics.BitmapFactory.Options#inBitmap} instead of
+ * allocating. Paging through a gallery then recycles the same few buffers rather than producing
+ * garbage on every swipe.
+ *
+ * Bitmaps handed out by {@link SampledImageLoader} are reference counted: a bitmap only enters the
+ * pool once no view displays it and {@link BitmapMemoryCache} no longer holds it. Reuse of
+ * differently sized bitmaps needs API 19; on older platforms the pool stays empty.
+ */
+public final class BitmapPool {
+
+    /**
+     * Fraction of the max heap the pool may hold.
+     */
+    private static final int HEAP_FRACTION = 16;
+
+    /**
+     * A bitmap is not reused for a decode that needs less than 1 / MAX_SIZE_MULTIPLE of its
+     * memory, to avoid pinning large buffers for small images.
+     */
+    private static final int MAX_SIZE_MULTIPLE = 4;
+
+    private static BitmapPool sInstance;
+
+    private final int maxBytes;
+    private int currentBytes;
+
+    private final TreeMap<Integer, ArrayList<Bitmap>> buckets = new TreeMap<>();
+    private final IdentityHashMap<Bitmap, Integer> references = new IdentityHashMap<>();
+
+    private int hitCount;
+    private int missCount;
+    private int putCount;
+    private int evictionCount;
+
+    public static synchronized BitmapPool getInstance() {
+        if (sInstance == null) {
+            sInstance = new BitmapPool((int) (Runtime.getRuntime().maxMemory() / HEAP_FRACTION));
+        }
+        return sInstance;
+    }
+
+    private BitmapPool(int maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+    }
+
+    /**
+     * Take a bitmap that can hold a decode of the given size, or null if there is none.
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        if (!isSupported() || width <= 0 || height <= 0) {
+            return null;
+        }
+        int needed = width * height * bytesPerPixel(config);
+        for (Map.Entry<Integer, ArrayList<Bitmap>> entry = buckets.ceilingEntry(needed);
+             entry != null && entry.getKey() <= needed * MAX_SIZE_MULTIPLE;
+             entry = buckets.higherEntry(entry.getKey())) {
+
+            ArrayList<Bitmap> bucket = entry.getValue();
+            for (int i = bucket.size() - 1; i >= 0; i--) {
+                Bitmap bitmap = bucket.get(i);
+                if (bitmap.getConfig() == config) {
+                    removeFromBucket(entry.getKey(), bucket, i);
+                    hitCount++;
+                    return bitmap;
+                }
+            }
+        }
+        missCount++;
+        return null;
+    }
+
+    /**
+     * Give an unused bitmap to the pool. Bitmaps that can not be reused are dropped.
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    synchronized void put(Bitmap bitmap) {
+        if (!isSupported() || bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()
+                || references.containsKey(bitmap)) {
+            return;
+        }
+        int size = bitmap.getAllocationByteCount();
+        if (size > maxBytes) {
+            return;
+        }
+
+        ArrayList<Bitmap> bucket = buckets.get(size);
+        if (bucket == null) {
+            bucket = new ArrayList<>();
+            buckets.put(size, bucket);
+        } else if (bucket.contains(bitmap)) {
+            return;
+        }
+        bucket.add(bitmap);
+        currentBytes += size;
+        putCount++;
+
+        //
+        // Over budget: drop the largest buffers first, they are the least likely to fit.
+        //
+        while (currentBytes > maxBytes && !buckets.isEmpty()) {
+            Map.Entry<Integer, ArrayList<Bitmap>> largest = buckets.lastEntry();
+            removeFromBucket(largest.getKey(), largest.getValue(), 0);
+            evictionCount++;
+        }
+    }
+
+    /**
+     * Mark a bitmap as displayed, it is not pooled until every {@link #retain(Bitmap)} is matched
+     * by a {@link #release(Bitmap)}.
+     */
+    synchronized void retain(Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+        Integer count = references.get(bitmap);
+        references.put(bitmap, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * The caller no longer displays the bitmap. Once nobody does and the memory cache has dropped
+     * it, it goes back to the pool.
+     */
+    void release(Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+        //
+        // Lock the cache first, as its eviction callback does, so eviction can not race with the
+        // last release.
+        //
+        BitmapMemoryCache cache = BitmapMemoryCache.getInstance();
+        synchronized (cache) {
+            synchronized (this) {
+                Integer count = references.get(bitmap);
+                if (count == null) {
+                    return;
+                }
+                if (count > 1) {
+                    references.put(bitmap, count - 1);
+                    return;
+                }
+                references.remove(bitmap);
+                if (!cache.contains(bitmap)) {
+                    put(bitmap);
+                }
+            }
+        }
+    }
+
+    private void removeFromBucket(int size, ArrayList<Bitmap> bucket, int index) {
+        bucket.remove(index);
+        currentBytes -= size;
+        if (bucket.isEmpty()) {
+            buckets.remove(size);
+        }
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        } else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        }
+        return 4;
+    }
+
+    /**
+     * Release pooled bitmaps according to an {@code onTrimMemory} level.
+     *
+     * @param level level passed to {@link ComponentCallbacks2#onTrimMemory(int)}
+     */
+    public synchronized void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            clear();
+        }
+    }
+
+    public synchronized void clear() {
+        buckets.clear();
+        currentBytes = 0;
+    }
+
+    public synchronized int size() {
+        return currentBytes;
+    }
+
+    public int maxSize() {
+        return maxBytes;
+    }
+
+    /**
+     * Decodes that reused a pooled bitmap.
+     */
+    public synchronized int hitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Decodes that had to allocate a new bitmap.
+     */
+    public synchronized int missCount() {
+        return missCount;
+    }
+
+    public synchronized int putCount() {
+        return putCount;
+    }
+
+    public synchronized int evictionCount() {
+        return evictionCount;
+    }
+}
@@ -0,0 +1,105 @@
+package deadline.scalelayout;
+
+/**
+ * 一次过渡（拖动 + 回弹动画）的帧耗时统计,
+ * 由{@link ScaleLayout.OnGestureMetricsListener}回调,
+ * 对象会被复用，需要保存的话请在回调中把数值拷贝出来
+ */
+public final class GestureMetrics {
+
+    private long mFrameBudgetNanos;
+    private int mFrameCount;
+    private long mTotalFrameNanos;
+    private long mMaxFrameNanos;
+    private int mJankFrameCount;
+    private int mMissedFrameCount;
+
+    private int mScaleUpdateCount;
+    private long mTotalScaleUpdateNanos;
+    private long mMaxScaleUpdateNanos;
+
+    void reset(long frameBudgetNanos){
+        mFrameBudgetNanos = frameBudgetNanos;
+        mFrameCount = 0;
+        mTotalFrameNanos = 0;
+        mMaxFrameNanos = 0;
+        mJankFrameCount = 0;
+        mMissedFrameCount = 0;
+        mScaleUpdateCount = 0;
+        mTotalScaleUpdateNanos = 0;
+        mMaxScaleUpdateNanos = 0;
+    }
+
+    /**
+     * @param frameNanos 和上一帧的间隔
+     */
+    void addFrame(long frameNanos){
+        mFrameCount++;
+        mTotalFrameNanos += frameNanos;
+        mMaxFrameNanos = Math.max(mMaxFrameNanos, frameNanos);
+
+        // 超过1.5倍的帧间隔说明至少错过了一个vsync
+        if(frameNanos * 2 > mFrameBudgetNanos * 3){
+            mJankFrameCount++;
+            mMissedFrameCount += (int) ((frameNanos + mFrameBudgetNanos / 2) / mFrameBudgetNanos) - 1;
+        }
+    }
+
+    void addScaleUpdate(long nanos){
+        mScaleUpdateCount++;
+        mTotalScaleUpdateNanos += nanos;
+        mMaxScaleUpdateNanos = Math.max(mMaxScaleUpdateNanos, nanos);
+    }
+
+    /**
+     * 一帧的时间预算，由屏幕刷新率决定
+     */
+    public long getFrameBudgetNanos(){
+        return mFrameBudgetNanos;
+    }
+
+    public int getFrameCount(){
+        return mFrameCount;
+    }
+
+    public long getTotalFrameNanos(){
+        return mTotalFrameNanos;
+    }
+
+    public long getMaxFrameNanos(){
+        return mMaxFrameNanos;
+    }
+
+    public float getAverageFrameMillis(){
+        return mFrameCount == 0 ? 0 : mTotalFrameNanos / (mFrameCount * 1000000f);
+    }
+
+    /**
+     * 超出预算的帧数
+     */
+    public int getJankFrameCount(){
+        return mJankFrameCount;
+    }
+
+    /**
+     * 超出预算的帧一共错过的vsync数
+     */
+    public int getMissedFrameCount(){
+        return mMissedFrameCount;
+    }
+
+    /**
+     * doSetScale()的执行次数和耗时
+     */
+    public int getScaleUpdateCount(){
+        return mScaleUpdateCount;
+    }
+
+    public long getTotalScaleUpdateNanos(){
+        return mTotalScaleUpdateNanos;
+    }
+
+    public long getMaxScaleUpdateNanos(){
+        return mMaxScaleUpdateNanos;
+    }
+}
@@ -0,0 +1,689 @@
+package deadline.scalelayout;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.res.Resources;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.drawable.BitmapDrawable;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.MediaStore;
+import android.support.v4.util.LongSparseArray;
+import android.util.DisplayMetrics;
+import android.util.Log;
+import android.view.View;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Renders a very large image as a grid of tiles decoded on demand with {@link BitmapRegionDecoder}.
+ *
+ * A low resolution copy of the whole image is used as the view's drawable. That drawable reports
+ * the full image size as its intrinsic size, so the image matrix of {@link TouchImageView} works in
+ * full resolution coordinates. Only the tiles that intersect the viewport are decoded, on a
+ * background thread, at the power of two sample size matching the current zoom, and they are kept
+ * in a cache bounded by the screen size. Memory use therefore does not depend on the image size.
+ *
+ * Tiles are decoded in the orientation the image is stored in; the EXIF orientation is applied
+ * when drawing, so the view sees the image upright.
+ */
+final class RegionTileRenderer {
+
+    private static final String TAG = "RegionTileRenderer";
+
+    /**
+     * Edge of a tile in decoded pixels.
+     */
+    static final int TILE_SIZE = 256;
+
+    /**
+     * How many screens worth of tiles the cache may hold.
+     */
+    private static final int CACHE_SCREENS = 3;
+
+    /**
+     * How many finished tile tasks are kept for reuse.
+     */
+    private static final int MAX_SPARE_TASKS = 32;
+
+    private static Executor sDecodeExecutor;
+
+    interface Callback {
+        /**
+         * Called on the main thread.
+         *
+         * @param renderer the renderer, or null if the image could not be opened
+         */
+        void onLoaded(RegionTileRenderer renderer);
+    }
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Object decoderLock = new Object();
+    private BitmapRegionDecoder decoder;
+
+    //
+    // Size of the stored image, before the EXIF orientation. Tiles are laid out in these
+    // coordinates and orientation maps them to the coordinates of the displayed image.
+    //
+    private final int imageWidth, imageHeight;
+    private final Matrix orientation;
+    private final int baseSampleSize;
+    private final BaseDrawable baseDrawable;
+
+    //
+    // Tiles are keyed by primitive longs so draw() neither boxes keys nor allocates on a hit.
+    //
+    private final TileCache tileCache;
+    private final LongSparseArray<TileTask> pendingTiles = new LongSparseArray<>();
+    private final ArrayList<TileTask> spareTasks = new ArrayList<>();
+
+    private View target;
+
+    //
+    // Read by the decode thread so tasks queued before release() do not decode.
+    //
+    private volatile boolean released;
+
+    //
+    // Visible tile range of the last draw. Read by the decode thread so queued decodes for tiles
+    // that are no longer visible can be skipped.
+    //
+    private volatile int visibleSample, visibleLeft, visibleTop, visibleRight, visibleBottom;
+
+    private final Matrix drawMatrix = new Matrix();
+    private final Matrix inverse = new Matrix();
+    private final RectF visibleRect = new RectF();
+    private final RectF tileRect = new RectF();
+    private final float[] values = new float[9];
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    private RegionTileRenderer(Resources res, BitmapRegionDecoder decoder, Bitmap base,
+                               int baseSampleSize, int exifOrientation, int cacheBytes) {
+        this.decoder = decoder;
+        this.imageWidth = decoder.getWidth();
+        this.imageHeight = decoder.getHeight();
+        this.orientation = orientationMatrix(exifOrientation, imageWidth, imageHeight);
+        this.baseSampleSize = baseSampleSize;
+        boolean transposed = isTransposed(exifOrientation);
+        this.baseDrawable = new BaseDrawable(res, base,
+                transposed ? imageHeight : imageWidth, transposed ? imageWidth : imageHeight,
+                imageWidth, imageHeight, orientation);
+        this.tileCache = new TileCache(cacheBytes);
+    }
+
+    /**
+     * Open the image and decode its low resolution base on a background thread.
+     */
+    static void load(Context context, final Uri uri, final Callback callback) {
+        final Context appContext = context.getApplicationContext();
+        final Handler handler = new Handler(Looper.getMainLooper());
+        getDecodeExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                final RegionTileRenderer renderer = open(appContext, uri);
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onLoaded(renderer);
+                    }
+                });
+            }
+        });
+    }
+
+    private static RegionTileRenderer open(Context context, Uri uri) {
+        InputStream in = null;
+        try {
+            in = context.getContentResolver().openInputStream(uri);
+            if (in == null) {
+                return null;
+            }
+            BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(in, false);
+
+            DisplayMetrics metrics = context.getResources().getDisplayMetrics();
+            int screenWidth = metrics.widthPixels;
+            int screenHeight = metrics.heightPixels;
+            int maxBaseSize = Math.max(screenWidth, screenHeight);
+
+            //
+            // The base only has to look right when the whole image fits the screen.
+            //
+            int sample = 1;
+            while (Math.max(decoder.getWidth(), decoder.getHeight()) / (sample * 2) >= maxBaseSize) {
+                sample *= 2;
+            }
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = sample;
+            Bitmap base = decoder.decodeRegion(new Rect(0, 0, decoder.getWidth(), decoder.getHeight()), options);
+            if (base == null) {
+                decoder.recycle();
+                return null;
+            }
+
+            int cacheBytes = screenWidth * screenHeight * 4 * CACHE_SCREENS;
+            return new RegionTileRenderer(context.getResources(), decoder, base, sample,
+                    readExifOrientation(context, uri), cacheBytes);
+
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to open " + uri, e);
+            return null;
+
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * BitmapRegionDecoder ignores the EXIF orientation. File uris are read with ExifInterface;
+     * for content uris the media provider already extracted the rotation. Flips are only
+     * available from the file.
+     */
+    private static int readExifOrientation(Context context, Uri uri) {
+        String scheme = uri.getScheme();
+        if (ContentResolver.SCHEME_FILE.equals(scheme)) {
+            try {
+                return new ExifInterface(uri.getPath()).getAttributeInt(
+                        ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to read the orientation of " + uri, e);
+                return ExifInterface.ORIENTATION_NORMAL;
+            }
+        }
+        if (!ContentResolver.SCHEME_CONTENT.equals(scheme)) {
+            return ExifInterface.ORIENTATION_NORMAL;
+        }
+
+        Cursor cursor = null;
+        try {
+            cursor = context.getContentResolver().query(uri,
+                    new String[]{MediaStore.Images.ImageColumns.ORIENTATION}, null, null, null);
+            if (cursor == null || !cursor.moveToFirst()) {
+                return ExifInterface.ORIENTATION_NORMAL;
+            }
+            switch (cursor.getInt(0)) {
+                case 90:
+                    return ExifInterface.ORIENTATION_ROTATE_90;
+                case 180:
+                    return ExifInterface.ORIENTATION_ROTATE_180;
+                case 270:
+                    return ExifInterface.ORIENTATION_ROTATE_270;
+                default:
+                    return ExifInterface.ORIENTATION_NORMAL;
+            }
+        } catch (RuntimeException e) {
+            //
+            // Not a media provider uri, it has no orientation column.
+            //
+            return ExifInterface.ORIENTATION_NORMAL;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    private static boolean isTransposed(int exifOrientation) {
+        return exifOrientation >= ExifInterface.ORIENTATION_TRANSPOSE
+                && exifOrientation <= ExifInterface.ORIENTATION_ROTATE_270;
+    }
+
+    /**
+     * @return matrix mapping the stored image of the given size to the displayed image
+     */
+    private static Matrix orientationMatrix(int exifOrientation, int width, int height) {
+        Matrix matrix = new Matrix();
+        switch (exifOrientation) {
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                matrix.postScale(-1, 1);
+                matrix.postTranslate(width, 0);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                matrix.postRotate(180);
+                matrix.postTranslate(width, height);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                matrix.postScale(1, -1);
+                matrix.postTranslate(0, height);
+                break;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                matrix.postRotate(90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                matrix.postRotate(90);
+                matrix.postTranslate(height, 0);
+                break;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                matrix.postRotate(90);
+                matrix.postScale(1, -1);
+                matrix.postTranslate(height, width);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                matrix.postRotate(-90);
+                matrix.postTranslate(0, width);
+                break;
+            default:
+                break;
+        }
+        return matrix;
+    }
+
+    private static Executor getDecodeExecutor() {
+        if (sDecodeExecutor == null) {
+            sDecodeExecutor = Executors.newSingleThreadExecutor();
+        }
+        return sDecodeExecutor;
+    }
+
+    BitmapDrawable getBaseDrawable() {
+        return baseDrawable;
+    }
+
+    /**
+     * @return width of the displayed image, after the EXIF orientation
+     */
+    int getImageWidth() {
+        return baseDrawable.getIntrinsicWidth();
+    }
+
+    /**
+     * @return height of the displayed image, after the EXIF orientation
+     */
+    int getImageHeight() {
+        return baseDrawable.getIntrinsicHeight();
+    }
+
+    /**
+     * @param view invalidated whenever a tile finishes decoding
+     */
+    void setTarget(View view) {
+        target = view;
+    }
+
+    /**
+     * Draw the decoded tiles that intersect the viewport on top of the base drawable, and queue
+     * the missing ones.
+     *
+     * @param canvas       canvas already translated by the view padding
+     * @param imageMatrix  matrix mapping displayed image coordinates to view coordinates
+     * @param viewWidth    width of the viewport
+     * @param viewHeight   height of the viewport
+     */
+    void draw(Canvas canvas, Matrix imageMatrix, int viewWidth, int viewHeight) {
+        if (released || viewWidth <= 0 || viewHeight <= 0) {
+            return;
+        }
+
+        //
+        // Tiles are in stored image coordinates, apply the orientation before the image matrix.
+        // A quarter turn moves the scale into the skew entries.
+        //
+        drawMatrix.set(orientation);
+        drawMatrix.postConcat(imageMatrix);
+        drawMatrix.getValues(values);
+        float scale = (float) Math.hypot(values[Matrix.MSCALE_X], values[Matrix.MSKEW_Y]);
+        if (scale <= 0) {
+            return;
+        }
+
+        int sample = 1;
+        while (sample * 2 * scale <= 1f) {
+            sample *= 2;
+        }
+        if (sample >= baseSampleSize) {
+            //
+            // The base is already as sharp as the screen can show.
+            //
+            return;
+        }
+
+        if (!drawMatrix.invert(inverse)) {
+            return;
+        }
+        visibleRect.set(0, 0, viewWidth, viewHeight);
+        inverse.mapRect(visibleRect);
+
+        int span = TILE_SIZE * sample;
+        int left = Math.max(0, (int) (visibleRect.left / span));
+        int top = Math.max(0, (int) (visibleRect.top / span));
+        int right = Math.min((imageWidth - 1) / span, (int) (visibleRect.right / span));
+        int bottom = Math.min((imageHeight - 1) / span, (int) (visibleRect.bottom / span));
+
+        visibleSample = sample;
+        visibleLeft = left;
+        visibleTop = top;
+        visibleRight = right;
+        visibleBottom = bottom;
+
+        int saveCount = canvas.save();
+        canvas.concat(drawMatrix);
+        for (int row = top; row <= bottom; row++) {
+            for (int col = left; col <= right; col++) {
+                long key = tileKey(sample, row, col);
+                Bitmap tile = tileCache.get(key);
+                if (tile != null) {
+                    tileRect.set(col * span, row * span,
+                            Math.min(imageWidth, (col + 1) * span), Math.min(imageHeight, (row + 1) * span));
+                    canvas.drawBitmap(tile, null, tileRect, paint);
+
+                } else if (pendingTiles.get(key) == null) {
+                    TileTask task = obtainTask(key, sample, row, col);
+                    pendingTiles.put(key, task);
+                    getDecodeExecutor().execute(task);
+                }
+            }
+        }
+        canvas.restoreToCount(saveCount);
+    }
+
+    /**
+     * Drop all decoded tiles, e.g. when the view is detached. They are decoded again on the next
+     * draw.
+     */
+    void trimTiles() {
+        tileCache.evictAll();
+    }
+
+    /**
+     * Release the decoder and all tiles. The renderer can not be used afterwards.
+     */
+    void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+        target = null;
+        tileCache.evictAll();
+        pendingTiles.clear();
+
+        //
+        // A tile may be decoding right now; recycle after it on the decode thread.
+        //
+        getDecodeExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (decoderLock) {
+                    if (decoder != null) {
+                        decoder.recycle();
+                        decoder = null;
+                    }
+                }
+            }
+        });
+    }
+
+    private static long tileKey(int sample, int row, int col) {
+        return ((long) sample << 48) | ((long) row << 24) | col;
+    }
+
+    private TileTask obtainTask(long key, int sample, int row, int col) {
+        int count = spareTasks.size();
+        TileTask task = count > 0 ? spareTasks.remove(count - 1) : new TileTask();
+        task.set(key, sample, row, col);
+        return task;
+    }
+
+    private void onTileDecoded(TileTask task) {
+        long key = task.key;
+        Bitmap bitmap = task.bitmap;
+        //
+        // A tile skipped while it was off screen may be back in view by now. Nothing else would
+        // draw again to queue it, so invalidate for it just like for a decoded tile.
+        //
+        boolean redraw = bitmap != null || (task.skipped && task.isVisible());
+
+        if (pendingTiles.get(key) == task) {
+            pendingTiles.remove(key);
+        }
+        task.bitmap = null;
+        if (spareTasks.size() < MAX_SPARE_TASKS) {
+            spareTasks.add(task);
+        }
+
+        if (released) {
+            return;
+        }
+        if (bitmap != null) {
+            tileCache.put(key, bitmap);
+        }
+        if (redraw && target != null) {
+            target.invalidate();
+        }
+    }
+
+    /**
+     * Decodes one tile on the decode thread, then posts itself back to the main thread to deliver
+     * the result.
+     */
+    private final class TileTask implements Runnable {
+
+        private final Rect region = new Rect();
+        private final BitmapFactory.Options options = new BitmapFactory.Options();
+
+        private long key;
+        private int sample;
+        private int row, col;
+
+        private boolean decoded;
+        private boolean skipped;
+        private Bitmap bitmap;
+
+        void set(long key, int sample, int row, int col) {
+            this.key = key;
+            this.sample = sample;
+            this.row = row;
+            this.col = col;
+            decoded = false;
+            skipped = false;
+            bitmap = null;
+        }
+
+        private boolean isVisible() {
+            return sample == visibleSample
+                    && row >= visibleTop && row <= visibleBottom
+                    && col >= visibleLeft && col <= visibleRight;
+        }
+
+        @Override
+        public void run() {
+            if (decoded) {
+                onTileDecoded(this);
+                return;
+            }
+            decoded = true;
+
+            //
+            // Tasks queued before release() still run ahead of the recycle; skip them and only
+            // post back so the task returns to the spare list.
+            //
+            skipped = released || !isVisible();
+            if (!skipped) {
+                int span = TILE_SIZE * sample;
+                region.set(col * span, row * span,
+                        Math.min(imageWidth, (col + 1) * span), Math.min(imageHeight, (row + 1) * span));
+                options.inSampleSize = sample;
+                synchronized (decoderLock) {
+                    if (!released && decoder != null && !decoder.isRecycled()) {
+                        try {
+                            bitmap = decoder.decodeRegion(region, options);
+                        } catch (OutOfMemoryError e) {
+                            Log.w(TAG, "Out of memory decoding tile " + region);
+                        }
+                    }
+                }
+            }
+            handler.post(this);
+        }
+    }
+
+    /**
+     * Least recently used tile cache bounded by bitmap bytes. Keys are primitive longs and the
+     * entries form a linked list, so a lookup only relinks an existing entry.
+     */
+    static final class TileCache {
+
+        private static final class Entry {
+            long key;
+            Bitmap bitmap;
+            int bytes;
+            Entry newer, older;
+        }
+
+        private final LongSparseArray<Entry> entries = new LongSparseArray<>();
+        private final int maxBytes;
+        private int bytes;
+
+        //
+        // Most recently used entry first.
+        //
+        private Entry newest, oldest;
+
+        TileCache(int maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        Bitmap get(long key) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry != newest) {
+                unlink(entry);
+                linkNewest(entry);
+            }
+            return entry.bitmap;
+        }
+
+        void put(long key, Bitmap bitmap) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                unlink(entry);
+                bytes -= entry.bytes;
+            } else {
+                entry = new Entry();
+                entry.key = key;
+                entries.put(key, entry);
+            }
+            entry.bitmap = bitmap;
+            entry.bytes = bitmap.getRowBytes() * bitmap.getHeight();
+            bytes += entry.bytes;
+            linkNewest(entry);
+            trimToSize(maxBytes);
+        }
+
+        void evictAll() {
+            trimToSize(-1);
+        }
+
+        private void trimToSize(int size) {
+            while (bytes > size && oldest != null) {
+                Entry entry = oldest;
+                unlink(entry);
+                entries.remove(entry.key);
+                bytes -= entry.bytes;
+                entry.bitmap = null;
+            }
+        }
+
+        private void linkNewest(Entry entry) {
+            entry.older = newest;
+            entry.newer = null;
+            if (newest != null) {
+                newest.newer = entry;
+            }
+            newest = entry;
+            if (oldest == null) {
+                oldest = entry;
+            }
+        }
+
+        private void unlink(Entry entry) {
+            if (entry.newer != null) {
+                entry.newer.older = entry.older;
+            } else {
+                newest = entry.older;
+            }
+            if (entry.older != null) {
+                entry.older.newer = entry.newer;
+            } else {
+                oldest = entry.newer;
+            }
+            entry.newer = null;
+            entry.older = null;
+        }
+    }
+
+    /**
+     * Low resolution copy of the whole image, reporting the full size of the displayed image and
+     * drawn in its orientation.
+     */
+    static final class BaseDrawable extends BitmapDrawable {
+
+        private final int width, height;
+        private final Rect src = new Rect();
+        private final RectF dst = new RectF();
+        private final Matrix orientation;
+
+        /**
+         * @param width       displayed width
+         * @param height      displayed height
+         * @param imageWidth  stored width, before the orientation
+         * @param imageHeight stored height, before the orientation
+         * @param orientation maps the stored image to the displayed image
+         */
+        BaseDrawable(Resources res, Bitmap bitmap, int width, int height,
+                     int imageWidth, int imageHeight, Matrix orientation) {
+            super(res, bitmap);
+            this.width = width;
+            this.height = height;
+            this.orientation = orientation;
+            src.set(0, 0, bitmap.getWidth(), bitmap.getHeight());
+            dst.set(0, 0, imageWidth, imageHeight);
+            setFilterBitmap(true);
+        }
+
+        @Override
+        public void draw(Canvas canvas) {
+            if (orientation.isIdentity()) {
+                super.draw(canvas);
+                return;
+            }
+            Rect bounds = getBounds();
+            int saveCount = canvas.save();
+            canvas.translate(bounds.left, bounds.top);
+            canvas.scale(bounds.width() / (float) width, bounds.height() / (float) height);
+            canvas.concat(orientation);
+            canvas.drawBitmap(getBitmap(), src, dst, getPaint());
+            canvas.restoreToCount(saveCount);
+        }
+
+        @Override
+        public int getIntrinsicWidth() {
+            return width;
+        }
+
+        @Override
+        public int getIntrinsicHeight() {
+            return height;
+        }
+    }
+}
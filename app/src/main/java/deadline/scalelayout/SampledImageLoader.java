@@ -0,0 +1,351 @@
+package deadline.scalelayout;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.OpenableColumns;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Decodes a resource or uri off the main thread at the largest power of two sample size that
+ * still shows full detail at the view's maximum zoom. A 4000px photo shown in a 1080px view with
+ * a max zoom of 3 is decoded at half resolution instead of in full.
+ *
+ * Decoded bitmaps are shared through {@link BitmapMemoryCache}. The size of every image seen is
+ * remembered, so a repeated load of one of the app's resources can find its bitmap in the cache
+ * without touching the disk and is delivered synchronously. Sizes and cached bitmaps are keyed by
+ * the source's version as well, so a file that changed is decoded again; since the version of a
+ * file or content uri takes I/O to find out, those are only looked up on the executor. New decodes reuse the memory of a bitmap from {@link BitmapPool}
+ * when one of a suitable size is available. Decodes are also kept in {@link BitmapDiskCache}, so
+ * after a restart an image is read back already downsampled instead of being decoded again. The
+ * disk key includes the app version for resources and the size and modification time for files
+ * and content; a source with no known version is not kept on disk.
+ *
+ * Every bitmap delivered is retained in {@link BitmapPool}; the receiver must
+ * {@link BitmapPool#release(Bitmap) release} it once it no longer displays it.
+ */
+final class SampledImageLoader {
+
+    private static final String TAG = "SampledImageLoader";
+
+    private static Executor sExecutor;
+
+    /**
+     * Source image sizes, {width, height}, by versioned source key.
+     */
+    private static final LruCache<String, int[]> sImageSizes = new LruCache<>(256);
+
+    /**
+     * Version of the app's own resources, null until it has been read on the executor.
+     */
+    private static volatile String sPackageVersion;
+
+    interface Callback {
+        /**
+         * Called on the main thread.
+         *
+         * @param bitmap the decoded bitmap, or null if the image could not be decoded
+         */
+        void onLoaded(Bitmap bitmap);
+    }
+
+    private SampledImageLoader() {
+    }
+
+    /**
+     * A bitmap already in the memory cache is passed to the callback before this returns, so
+     * do not call it while the view is being measured or laid out.
+     *
+     * @param resId     drawable resource to decode, used when uri is null
+     * @param uri       content, file or android.resource uri to decode
+     * @param width     width of the view the image is fitted into
+     * @param height    height of the view the image is fitted into
+     * @param maxZoom   maximum zoom relative to the fitted size
+     * @param crop      true if the image is scaled to fill the view (CENTER_CROP), false if it is
+     *                  scaled to fit inside it
+     */
+    static void load(Context context, final int resId, final Uri uri, final int width, final int height,
+                     final float maxZoom, final boolean crop, final Callback callback) {
+        final String source = uri != null ? uri.toString() : "res:" + resId;
+        String version = uri == null ? sPackageVersion : null;
+        final int[] size = version != null ? sImageSizes.get(versionedSource(source, version)) : null;
+        if (size != null) {
+            int sampleSize = computeSampleSize(size[0], size[1], width, height, maxZoom, crop);
+            Bitmap cached = BitmapMemoryCache.getInstance().acquire(
+                    BitmapMemoryCache.key(versionedSource(source, version), sampleSize));
+            if (cached != null) {
+                callback.onLoaded(cached);
+                return;
+            }
+        }
+
+        final Context appContext = context.getApplicationContext();
+        final Handler handler = new Handler(Looper.getMainLooper());
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                //
+                // Only consult the cache here if it could not be checked on the main thread.
+                //
+                final Bitmap bitmap = decode(appContext, source, size == null, resId, uri,
+                        width, height, maxZoom, crop);
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onLoaded(bitmap);
+                    }
+                });
+            }
+        });
+    }
+
+    private static Bitmap decode(Context context, String source, boolean checkCache, int resId, Uri uri,
+                                 int width, int height, float maxZoom, boolean crop) {
+        try {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            decodeStream(context, resId, uri, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                return null;
+            }
+            String version = sourceVersion(context, uri);
+            String versionedSource = versionedSource(source, version);
+            sImageSizes.put(versionedSource, new int[]{options.outWidth, options.outHeight});
+
+            options.inSampleSize = computeSampleSize(options.outWidth, options.outHeight,
+                    width, height, maxZoom, crop);
+            String key = BitmapMemoryCache.key(versionedSource, options.inSampleSize);
+            BitmapMemoryCache cache = BitmapMemoryCache.getInstance();
+            if (checkCache) {
+                Bitmap cached = cache.acquire(key);
+                if (cached != null) {
+                    return cached;
+                }
+            }
+
+            //
+            // Reading the downsampled pixels back is much cheaper than decoding the original.
+            //
+            BitmapDiskCache diskCache = version != null ? BitmapDiskCache.getInstance(context) : null;
+            String diskKey = version != null
+                    ? BitmapDiskCache.key(BitmapMemoryCache.key(source, options.inSampleSize), version,
+                    options.inPreferredConfig) : null;
+            Bitmap bitmap = diskCache != null ? diskCache.get(diskKey) : null;
+            boolean decoded = bitmap == null;
+            if (decoded) {
+                options.inJustDecodeBounds = false;
+                bitmap = decodeReusing(context, resId, uri, options);
+            }
+            BitmapPool.getInstance().retain(bitmap);
+            cache.put(key, bitmap);
+
+            //
+            // Only after the retain: the disk cache releases the bitmap once it is written, which
+            // would otherwise hand a bitmap about to be displayed to the pool.
+            //
+            if (decoded && diskCache != null) {
+                diskCache.put(diskKey, bitmap);
+            }
+            return bitmap;
+
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to open " + (uri != null ? uri : resId), e);
+            return null;
+
+        } catch (OutOfMemoryError e) {
+            Log.w(TAG, "Out of memory decoding " + (uri != null ? uri : resId));
+            return null;
+        }
+    }
+
+    /**
+     * Something that changes whenever the source image may have changed, or null if nothing
+     * like that is known.
+     */
+    private static String sourceVersion(Context context, Uri uri) {
+        if (uri == null) {
+            //
+            // An update restarts the process, so the app's version is read once.
+            //
+            String version = sPackageVersion;
+            if (version == null) {
+                version = packageVersion(context, context.getPackageName());
+                sPackageVersion = version;
+            }
+            return version;
+        }
+        String scheme = uri.getScheme();
+        if (ContentResolver.SCHEME_ANDROID_RESOURCE.equals(scheme)) {
+            return packageVersion(context, uri.getAuthority());
+        }
+        if (ContentResolver.SCHEME_FILE.equals(scheme)) {
+            if (uri.getPath() == null) {
+                return null;
+            }
+            File file = new File(uri.getPath());
+            return fileVersion(file.length(), file.lastModified());
+        }
+        if (ContentResolver.SCHEME_CONTENT.equals(scheme)) {
+            return contentVersion(context, uri);
+        }
+        return null;
+    }
+
+    private static String versionedSource(String source, String version) {
+        return version != null ? source + "@" + version : source;
+    }
+
+    private static String packageVersion(Context context, String packageName) {
+        try {
+            return "v" + context.getPackageManager().getPackageInfo(packageName, 0).versionCode;
+        } catch (PackageManager.NameNotFoundException e) {
+            return null;
+        }
+    }
+
+    private static String fileVersion(long size, long lastModified) {
+        if (size <= 0 && lastModified <= 0) {
+            return null;
+        }
+        return size + "-" + lastModified;
+    }
+
+    /**
+     * Size and modification time as reported by the provider. Document providers use
+     * last_modified, the media store date_modified.
+     */
+    private static String contentVersion(Context context, Uri uri) {
+        Cursor cursor = null;
+        try {
+            cursor = context.getContentResolver().query(uri, null, null, null, null);
+            if (cursor == null || !cursor.moveToFirst()) {
+                return null;
+            }
+            long size = getLong(cursor, OpenableColumns.SIZE);
+            long lastModified = getLong(cursor, "last_modified");
+            if (lastModified <= 0) {
+                lastModified = getLong(cursor, "date_modified");
+            }
+            return fileVersion(size, lastModified);
+
+        } catch (RuntimeException e) {
+            //
+            // Providers are free to reject the query; the image is then just not cached on disk.
+            //
+            Log.w(TAG, "Unable to query " + uri, e);
+            return null;
+
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    private static long getLong(Cursor cursor, String column) {
+        int index = cursor.getColumnIndex(column);
+        if (index < 0 || cursor.isNull(index)) {
+            return 0;
+        }
+        return cursor.getLong(index);
+    }
+
+    /**
+     * Decode into a pooled bitmap if there is one that fits, falling back to a fresh allocation
+     * if the decoder rejects it.
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static Bitmap decodeReusing(Context context, int resId, Uri uri,
+                                        BitmapFactory.Options options) throws IOException {
+        if (!BitmapPool.isSupported()) {
+            return decodeStream(context, resId, uri, options);
+        }
+        int sample = options.inSampleSize;
+        int width = (options.outWidth + sample - 1) / sample;
+        int height = (options.outHeight + sample - 1) / sample;
+        Bitmap reuse = BitmapPool.getInstance().get(width, height, Bitmap.Config.ARGB_8888);
+
+        options.inMutable = true;
+        options.inBitmap = reuse;
+        try {
+            Bitmap bitmap = decodeStream(context, resId, uri, options);
+            if (bitmap == null && reuse != null) {
+                BitmapPool.getInstance().put(reuse);
+            }
+            return bitmap;
+
+        } catch (IllegalArgumentException e) {
+            if (reuse == null) {
+                throw e;
+            }
+            options.inBitmap = null;
+            BitmapPool.getInstance().put(reuse);
+            return decodeStream(context, resId, uri, options);
+        }
+    }
+
+    private static Bitmap decodeStream(Context context, int resId, Uri uri,
+                                       BitmapFactory.Options options) throws IOException {
+        InputStream in = uri != null
+                ? context.getContentResolver().openInputStream(uri)
+                : context.getResources().openRawResource(resId);
+        if (in == null) {
+            throw new IOException("No stream for " + uri);
+        }
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Largest power of two sample size at which the image, fitted to the view and zoomed to
+     * maxZoom, still has at least one decoded pixel per screen pixel.
+     */
+    static int computeSampleSize(int imageWidth, int imageHeight, int width, int height,
+                                 float maxZoom, boolean crop) {
+        if (width <= 0 || height <= 0) {
+            return 1;
+        }
+        float scaleX = (float) width / imageWidth;
+        float scaleY = (float) height / imageHeight;
+        float displayScale = (crop ? Math.max(scaleX, scaleY) : Math.min(scaleX, scaleY))
+                * Math.max(1f, maxZoom);
+
+        int sample = 1;
+        while (sample * 2 * displayScale <= 1f) {
+            sample *= 2;
+        }
+        return sample;
+    }
+
+    /**
+     * Forget the remembered image sizes, as a restart of the process would.
+     */
+    static void clearImageSizes() {
+        sImageSizes.evictAll();
+    }
+
+    private static Executor getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = Executors.newSingleThreadExecutor();
+        }
+        return sExecutor;
+    }
+}
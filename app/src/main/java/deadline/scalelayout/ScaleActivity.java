@@ -41,12 +41,6 @@ public class ScaleActivity extends AppCompatActivity {
         mScaleLayout = (ScaleLayout) findViewById(R.id.scale_layout);
         mScaleLayout.setSuggestScaleEnable(true);
         touchImageView = (TouchImageView) findViewById(R.id.scaleLayout_center);
-        mScaleLayout.setOnGetCanScaleListener(new ScaleLayout.OnGetCanScaleListener() {
-            @Override
-            public boolean onGetCanScale(boolean isScrollDown) {
-                return !touchImageView.isZoomed();
-            }
-        });
 
         mTop = (TextView) findViewById(R.id.scaleLayout_top);
         mTop.setOnClickListener(new View.OnClickListener() {
@@ -1,26 +1,43 @@
 package deadline.scalelayout;
 
-import android.animation.Animator;
-import android.animation.AnimatorListenerAdapter;
-import android.animation.ValueAnimator;
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.res.TypedArray;
-import android.os.Bundle;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+import android.os.Build;
+import android.os.Parcel;
 import android.os.Parcelable;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.support.v4.view.NestedScrollingParent;
+import android.support.v4.view.NestedScrollingParentHelper;
+import android.support.v4.view.ViewCompat;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.Gravity;
 import android.view.MotionEvent;
+import android.view.VelocityTracker;
 import android.view.View;
+import android.view.ViewConfiguration;
+import android.view.ViewTreeObserver;
+import android.view.animation.AnimationUtils;
 import android.widget.FrameLayout;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.concurrent.Executor;
 
 /**
  * @author deadline
  * @time 2016/10/12.
  *
  */
-public class ScaleLayout extends FrameLayout{
+public class ScaleLayout extends FrameLayout implements NestedScrollingParent{
 
     private static final String TAG = ScaleLayout.class.getSimpleName();
 
@@ -31,11 +48,53 @@ public class ScaleLayout extends FrameLayout{
 
     private static final int DEFAULT_DURATION = 1000;
 
+    /**
+     * 超过预测时长再加上这个时间(毫秒)没有收到move事件，认为手指已经停下
+     */
+    private static final long PREDICTION_IDLE_TIMEOUT = 32;
+
+    private static final String TRACE_TRANSITION = "ScaleLayout#transition";
+    private static final String TRACE_SET_SCALE = "ScaleLayout#doSetScale";
+
+    /**
+     * Trace.TRACE_TAG_VIEW, 和系统的view相关的trace在一起
+     */
+    private static final long TRACE_TAG_VIEW = 1L << 3;
+
+    private static Method sAsyncTraceBegin;
+    private static Method sAsyncTraceEnd;
+    private static boolean sAsyncTraceResolved;
+
+    private static final int LAYER_TOP = 1;
+    private static final int LAYER_CENTER = 1 << 1;
+    private static final int LAYER_BOTTOM = 1 << 2;
+
     public static final int STATE_OPEN = 0;
 
     public static final int STATE_CLOSE = 1;
 
+    /**
+     * 内部使用, scale介于mMinScale和1之间
+     */
+    private static final int STATE_TRANSITION = 2;
+
+    private static final int STATE_UNKNOWN = -1;
+
     private boolean mSuggestScaleEnable;
+
+    /**
+     * 上一次计算推荐scale时 topView + bottomView 的高度和可用高度,
+     * 两者都没有变化时不重新计算
+     */
+    private int mSuggestDecorationHeight = -1;
+    private int mSuggestContentHeight = -1;
+
+    /**
+     * 初始状态或恢复的scale还没有应用到view上，等到第一次onLayout时
+     * 用真实的尺寸计算pivot和滑动距离后再设置
+     */
+    private boolean mPendingScaleApply;
+
     /**
      * 设置是否启用上滑缩小功能
      */
@@ -90,12 +149,161 @@ public class ScaleLayout extends FrameLayout{
     private float downY;
     private float mInitialMotionX, mInitialMotionY;
 
+    /**
+     * 记录拖动的速度，ACTION_UP 时根据速度决定打开还是关闭
+     */
+    private VelocityTracker mVelocityTracker;
+    private int mMinimumFlingVelocity;
+
+    /**
+     * ACTION_UP 之后的弹簧回弹
+     */
+    private ScaleSpring mSpring;
+    private boolean mSpringRunning;
+    private int mSpringState;
+
+    /**
+     * 动画或回弹过程中按下时被接住的目标状态(没有则为-1)和当时scale的速度(每秒),
+     * 如果手指没有拖动就抬起，从当前位置带着这个速度继续过渡
+     */
+    private int mCaughtState = -1;
+    private float mCaughtScaleVelocity;
+
+    /**
+     * 这次手势是否从接住的过渡开始, 是的话拖动不再等待touchSlop
+     */
+    private boolean mTransitionCaught;
+
+    /**
+     * 预测手指位置，减少拖动时的视觉延迟, null表示不启用
+     */
+    private TouchPredictor mTouchPredictor;
+
+    /**
+     * 当前的mCurrentScale是否包含了预测的位移, 以及最后一次拖动的时间(uptimeMillis)
+     * 手指停下或者松手时去掉预测的位移，回到手指实际的位置
+     */
+    private boolean mPredictionApplied;
+    private long mLastDragTime;
+    private boolean mPredictionIdlePosted;
+    private Runnable mPredictionIdleRunnable;
+
+    /**
+     * 是否把同一帧内的多个move事件合并为一次doSetScale()
+     */
+    private boolean mFrameCoalesceEnable = true;
+    private boolean mScaleUpdatePending;
+    private Runnable mScaleUpdateRunnable;
+
+    /**
+     * 本次拖动收到的触摸采样数（包括历史采样）和实际执行doSetScale()的次数
+     */
+    private int mReceivedTouchSamples;
+    private int mAppliedScaleUpdates;
+
+
+    /**
+     * setState() 和 setMinScale() 的过渡动画，
+     * 和弹簧回弹一样由{@link ScaleTransitionDriver}逐帧推进, 不创建ValueAnimator
+     * 动画的起止scale, 开始时间, 时长, 以及结束时要设置的状态(没有则为-1)
+     */
+    private boolean mTweenRunning;
+    private float mTweenFrom, mTweenTo;
+    private long mTweenStartTime;
+    private float mTweenDuration;
+
+    /**
+     * 时长调整为整数帧时一帧的时长, 毫秒, 否则为0
+     */
+    private float mTweenFrameMillis;
+
+    /**
+     * 是否把动画时长调整为整数帧
+     */
+    private boolean mFrameAlignedDurationEnable;
+    private int mTweenState = -1;
+
+    /**
+     * centerView 的pivot, 在onLayout中计算
+     */
+    private float mCenterViewPivotX, mCenterViewPivotY;
+
+    /**
+     * onMeasure中需要按最终大小再测量一次的match_parent子view, 复用避免每次测量都创建
+     */
+    private final ArrayList<View> mMatchParentChildren = new ArrayList<>(1);
+
+    /**
+     * foreground的padding, 和FrameLayout一样计入子view的可用空间
+     */
+    private final Rect mForegroundPadding = new Rect();
+
+    /**
+     * 是否在过渡（拖动或动画）期间把top center bottom view提升为硬件层
+     */
+    private boolean mLayerTransitionEnable;
+
+    /**
+     * 是否只通过translationY移动topView bottomView, 不再修改它们的top bottom
+     */
+    private boolean mTranslationTransitionEnable;
+
+    /**
+     * 是否处于一次过渡中，从开始拖动或动画开始，到停止拖动且动画结束
+     */
+    private boolean mInTransition;
+
+    /**
+     * setProgress()停止了正在进行的动画，等新的scale应用之后再结束过渡
+     */
+    private boolean mEndTransitionAfterUpdate;
+
+    private boolean mIsBeingDragged;
+
+    /**
+     * 被我们提升为硬件层的view, 结束时只恢复这些view
+     */
+    private int mPromotedLayers;
+
+    /**
+     * 硬件层存在期间绘制的帧数
+     */
+    private int mLayerFrameCount;
+
+    /**
+     * ViewTreeObserver.OnDrawListener, API 16 才有，所以用Object保存
+     */
+    private Object mLayerDrawListener;
+
+    /**
+     * 过渡期间用centerView的截图代替centerView绘制，
+     * 截图的Bitmap和Canvas在多次过渡之间复用
+     */
+    private boolean mSnapshotTransitionEnable;
+    private boolean mSnapshotActive;
+    private Bitmap mSnapshotBitmap;
+    private Canvas mSnapshotCanvas;
+    private Paint mSnapshotPaint;
+
+    /**
+     * 帧耗时统计，设置了mMetricsListener才会记录
+     */
+    private OnGestureMetricsListener mMetricsListener;
+    private GestureMetrics mMetrics;
+    private boolean mMetricsRecording;
+    private long mLastFrameTimeNanos;
+
+    /**
+     * Choreographer.FrameCallback, API 16 才有，所以用Object保存
+     */
+    private Object mMetricsFrameCallback;
 
     /**
-     * 用来ACTION_UP 之后处理变大（scale = 1f）
-     * 或变小（scale = mMinScale）的动画
+     * 支持嵌套滑动的子view(如TouchImageView)没有消费的竖直滑动用来缩放
      */
-    ValueAnimator animator;
+    private NestedScrollingParentHelper mNestedScrollingParentHelper;
+    private boolean mNestedScrollInProgress;
+    private float mNestedFlingVelocity;
 
     private OnGetCanScaleListener mCanScaleListener;
 
@@ -104,11 +312,53 @@ public class ScaleLayout extends FrameLayout{
      */
     private ArrayList<OnScaleChangedListener> mScaleListenerList;
 
+    /**
+     * 每帧只接收一次最新scale的监听器，可以指定在哪个Executor上执行
+     */
+    private ArrayList<FrameScaleDelivery> mFrameScaleListenerList;
+    private boolean mFrameScalePending;
+    private Runnable mFrameScaleRunnable;
+
+    /**
+     * 正在这一帧的animation回调(ScaleTransitionDriver或合并的拖动更新)中执行,
+     * 这时每帧的监听器直接在doSetScale()中回调, 不再post到下一帧
+     */
+    private boolean mInFrameCallback;
+
+    /**
+     * 最近一次{@link #stepTransition(long)}的帧时间, 毫秒
+     */
+    private long mLastFrameTime;
+
+    /**
+     * 正在分发scale变化的层数，分发期间移除的监听器先置null, 分发结束后再清理
+     */
+    private int mScaleDispatchDepth;
+    private boolean mScaleListenerRemoved;
+
     /**
      * 状态变化的监听器
      */
     private ArrayList<OnStateChangedListener> mStateListenerList;
 
+    /**
+     * 状态过渡开始和结束的监听器
+     */
+    private ArrayList<OnStateTransitionListener> mTransitionListenerList;
+
+    /**
+     * 上一次doSetScale()时scale所处的状态，和最后一次通知给OnStateChangedListener的状态
+     */
+    private int mScaleState = STATE_UNKNOWN;
+    private int mNotifiedState = STATE_UNKNOWN;
+
+    /**
+     * 开始过渡的次数, 状态真正发生变化的次数, 以及因为状态没有变化而省略的回调次数
+     */
+    private int mTransitionCount;
+    private int mStateChangeCount;
+    private int mSuppressedStateCount;
+
 
 
     public ScaleLayout(Context context) {
@@ -135,8 +385,8 @@ public class ScaleLayout extends FrameLayout{
     private void setupScaleLayout() {
 
         setWillNotDraw(false);
-        mScaleListenerList = new ArrayList<>();
-        mStateListenerList  = new ArrayList<>();
+        mMinimumFlingVelocity = ViewConfiguration.get(getContext()).getScaledMinimumFlingVelocity();
+        mNestedScrollingParentHelper = new NestedScrollingParentHelper(this);
     }
 
 
@@ -149,13 +399,13 @@ public class ScaleLayout extends FrameLayout{
 
         if(minScale > 0f && minScale < 1f){
             if(mMinScale != minScale){
-                if(isOpen()){
-                    if(animator != null){
-                        animator.cancel();
-                        animator = null;
+                if(mPendingScaleApply){
+                    if(isOpen()){
+                        mCurrentScale = minScale;
                     }
-                    animator = getAnimator(mMinScale, minScale);
-                    animator.start();
+                }else if(isOpen()){
+                    cancelAnimator();
+                    startTween(mMinScale, minScale, -1);
                 }
                 mMinScale = minScale;
             }
@@ -175,6 +425,8 @@ public class ScaleLayout extends FrameLayout{
     public void setSuggestScaleEnable(boolean enable){
         if(mSuggestScaleEnable != enable){
             mSuggestScaleEnable = enable;
+            mSuggestDecorationHeight = -1;
+            mSuggestContentHeight = -1;
             requestLayout();
         }
     }
@@ -182,9 +434,10 @@ public class ScaleLayout extends FrameLayout{
     /**
      * 设置的scale不得当的话，有可能topView / bottomView被覆盖
      * 通过设置{@link #setSuggestScaleEnable(boolean)}启用
-     * @return
+     * 只有topView bottomView的高度或可用高度变化时才重新计算，
+     * 普通的requestLayout不会引起任何过渡相关的工作
      */
-    private float getSuggestScale(){
+    private void updateSuggestScale(){
 
         int height = 0;
 
@@ -195,9 +448,239 @@ public class ScaleLayout extends FrameLayout{
         if(mBottomView != null){
             height += mBottomView.getMeasuredHeight();
         }
-        return 1 - height * 1f / (getMeasuredHeight() - getPaddingTop() - getPaddingBottom());
+
+        int contentHeight = getMeasuredHeight() - getPaddingTop() - getPaddingBottom();
+        if(height == mSuggestDecorationHeight && contentHeight == mSuggestContentHeight){
+            return;
+        }
+        mSuggestDecorationHeight = height;
+        mSuggestContentHeight = contentHeight;
+
+        applySuggestScale(ScaleMath.suggestScale(height, contentHeight));
+    }
+
+    /**
+     * 不同于{@link #setMinScale(float)}, 这里不会启动新的动画：
+     * 停在打开状态时直接跳到新的minScale, 正在打开的动画或回弹只修改终点
+     */
+    private void applySuggestScale(float minScale){
+        if(!(minScale > 0f && minScale < 1f) || minScale == mMinScale){
+            return;
+        }
+
+        float oldMinScale = mMinScale;
+        mMinScale = minScale;
+
+        // 还没有设置过scale时只修改数值，接下来会统一设置
+        if(mPendingScaleApply){
+            if(mCurrentScale == oldMinScale || mCurrentScale < minScale){
+                mCurrentScale = minScale;
+            }
+            return;
+        }
+
+        if(mTweenRunning && mTweenTo == oldMinScale){
+            // 动画的终点变了, 改终点会让scale跳变: 从当前的scale和速度用弹簧接着过渡,
+            // 仍然由ScaleTransitionDriver推进, 下一帧从这一帧的时间继续
+            boolean started = mTweenStartTime >= 0;
+            float velocity = started ? getTweenVelocity(mLastFrameTime) : 0;
+            int state = mTweenState != -1 ? mTweenState : mState;
+            mTweenRunning = false;
+            if(mSpring == null){
+                mSpring = new ScaleSpring();
+            }
+            mSpringState = state;
+            mSpringRunning = true;
+            startSpring(minScale, velocity, started ? mLastFrameTime : -1);
+
+        }else if(mSpringRunning && mSpringState == STATE_OPEN){
+            // 保留弹簧的位置、速度和时钟，只换目标
+            mSpring.setRestThreshold(getScaleRestThreshold());
+            mSpring.retarget(minScale);
+        }
+
+        boolean atRest = !mIsBeingDragged && !mTweenRunning && !mSpringRunning;
+        if(atRest && mCurrentScale == oldMinScale){
+            mCurrentScale = minScale;
+            mSlopLength = getSlopLength(minScale);
+            doSetScale();
+        }else if(mCurrentScale < minScale){
+            mCurrentScale = minScale;
+            doSetScale();
+        }
+    }
+
+
+    /**
+     * 过渡期间把top center bottom view提升为硬件层，
+     * 过渡结束后恢复，适合centerView内容复杂的情况
+     * @param enable
+     */
+    public void setLayerTransitionEnable(boolean enable){
+        if(mLayerTransitionEnable != enable){
+            mLayerTransitionEnable = enable;
+            if(!enable){
+                demoteLayers();
+            }else if(mInTransition){
+                promoteLayers();
+            }
+        }
+    }
+
+    /**
+     * 过渡期间不再绘制centerView, 而是绘制过渡开始时的截图，停止后恢复显示centerView
+     * 适合WebView、视频等绘制代价高或者内容一直在变化的centerView,
+     * 过渡期间centerView的内容不会更新, SurfaceView TextureView 无法截图
+     * @param enable
+     */
+    public void setSnapshotTransitionEnable(boolean enable){
+        if(mSnapshotTransitionEnable != enable){
+            mSnapshotTransitionEnable = enable;
+            if(!enable){
+                releaseSnapshot();
+                recycleSnapshotBitmap();
+            }else if(mInTransition){
+                captureSnapshot();
+            }
+        }
+    }
+
+    /**
+     * 把setState()等动画的时长调整为整数个屏幕刷新周期，
+     * 最后一帧正好落在终点上, 90Hz 120Hz的屏幕上不会多出一个很短的帧
+     * @param enable
+     */
+    public void setFrameAlignedDurationEnable(boolean enable){
+        mFrameAlignedDurationEnable = enable;
+    }
+
+    /**
+     * topView bottomView 只通过translationY和alpha做位移和渐变，
+     * 不改变布局边界，也不会把位置截断为整数像素
+     * @param enable
+     */
+    public void setTranslationTransitionEnable(boolean enable){
+        if(mTranslationTransitionEnable != enable){
+            mTranslationTransitionEnable = enable;
+            if(mTopView != null){
+                mTopView.setTranslationY(0);
+            }
+            if(mBottomView != null){
+                mBottomView.setTranslationY(0);
+            }
+            // 重新布局，恢复被setTop/setBottom修改过的位置
+            requestLayout();
+        }
+    }
+
+    /**
+     * 拖动时把同一帧内收到的所有move事件合并，每帧最多执行一次doSetScale()，
+     * 默认开启, 需要API 16+
+     * @param enable
+     */
+    public void setFrameCoalesceEnable(boolean enable){
+        if(mFrameCoalesceEnable != enable){
+            mFrameCoalesceEnable = enable;
+            if(!enable && mScaleUpdatePending){
+                doSetScale();
+            }
+        }
+    }
+
+    /**
+     * 拖动时根据最近的触摸采样（包括历史采样）预测手指接下来的位置，
+     * 用预测的位置计算scale, 结果仍限制在 mMinScale ~ 1 之间
+     * {@link #setTouchPrediction(float, float)}
+     * @param enable
+     */
+    public void setTouchPredictionEnable(boolean enable){
+        if(enable == (mTouchPredictor != null)){
+            return;
+        }
+        if(enable){
+            mTouchPredictor = new TouchPredictor();
+            // 预测的位移最多24dp
+            mTouchPredictor.setMaxOffset(24 * getResources().getDisplayMetrics().density);
+        }else{
+            mTouchPredictor = null;
+            if(retractPrediction()){
+                requestScaleUpdate();
+            }
+        }
+    }
+
+    /**
+     * 调整预测参数
+     * @param horizonMillis 预测多少毫秒之后的位置, 越大延迟越低，误差越大, 默认8ms
+     * @param smoothing 速度平滑系数 0 ~ 1, 越大越相信最新的采样, 默认0.5
+     */
+    public void setTouchPrediction(float horizonMillis, float smoothing){
+        setTouchPredictionEnable(true);
+        mTouchPredictor.setHorizon(horizonMillis);
+        mTouchPredictor.setSmoothing(smoothing);
+    }
+
+    /**
+     * 预测位置和实际位置的平均误差，像素，未启用时为0
+     * @return
+     */
+    public float getAveragePredictionError(){
+        return mTouchPredictor == null ? 0 : mTouchPredictor.getAverageError();
+    }
+
+    public void resetPredictionError(){
+        if(mTouchPredictor != null){
+            mTouchPredictor.resetError();
+        }
+    }
+
+    /**
+     * 最近一次拖动收到的触摸采样数，包括MotionEvent中的历史采样
+     * @return
+     */
+    public int getReceivedTouchSampleCount(){
+        return mReceivedTouchSamples;
+    }
+
+    /**
+     * 最近一次拖动中实际执行doSetScale()的次数,
+     * 与{@link #getReceivedTouchSampleCount()}对比可以看出合并的效果
+     * @return
+     */
+    public int getAppliedScaleUpdateCount(){
+        return mAppliedScaleUpdates;
+    }
+
+    /**
+     * 最近一次（或正在进行的）过渡中硬件层存在期间绘制的帧数,
+     * 需要API 16+
+     * @return
+     */
+    public int getLayerFrameCount(){
+        return mLayerFrameCount;
     }
 
+    /**
+     * 设置后记录每次过渡（拖动和回弹动画）的帧间隔、超出预算的帧数、
+     * doSetScale()的耗时，过渡结束时回调, 设置为null停止记录。
+     * 同时在systrace中用异步的 ScaleLayout#transition 覆盖整个过渡,
+     * 用 ScaleLayout#doSetScale 标记每次更新,
+     * 需要API 16+, systrace 需要API 18+
+     * @param listener
+     */
+    public void setOnGestureMetricsListener(OnGestureMetricsListener listener){
+        mMetricsListener = listener;
+        if(listener == null){
+            stopMetrics();
+        }else{
+            if(mMetrics == null){
+                mMetrics = new GestureMetrics();
+            }
+            if(mInTransition){
+                startMetrics();
+            }
+        }
+    }
 
     /**
      * 设置是否启用滑动缩小功能
@@ -223,120 +706,1004 @@ public class ScaleLayout extends FrameLayout{
      */
     public void addOnScaleChangedListener(OnScaleChangedListener listener){
         if(listener != null){
+            if(mScaleListenerList == null){
+                mScaleListenerList = new ArrayList<>();
+            }
             mScaleListenerList.add(listener);
         }
-    }
+    }
+
+    /**
+     * 添加一个每帧最多回调一次的监听器，只会收到这一帧最新的scale,
+     * 在主线程执行。动画和合并的拖动更新中，在同一帧设置完view的属性之后回调
+     * {@link #addOnFrameScaleChangedListener(OnScaleChangedListener, Executor)}
+     * @param listener
+     */
+    public void addOnFrameScaleChangedListener(OnScaleChangedListener listener){
+        addOnFrameScaleChangedListener(listener, null);
+    }
+
+    /**
+     * 添加一个每帧最多回调一次的监听器，只会收到最新的scale,
+     * 耗时的处理不会拖慢触摸响应
+     * @param listener
+     * @param executor 执行回调的Executor, null 表示在主线程执行。
+     *                 如果上一次回调还在排队，只会更新它要收到的scale, 不会重复提交
+     */
+    public void addOnFrameScaleChangedListener(OnScaleChangedListener listener, Executor executor){
+        if(listener != null){
+            if(mFrameScaleListenerList == null){
+                mFrameScaleListenerList = new ArrayList<>();
+            }
+            mFrameScaleListenerList.add(new FrameScaleDelivery(listener, executor));
+        }
+    }
+
+    /**
+     * 移除通过{@link #addOnScaleChangedListener(OnScaleChangedListener)}
+     * 或{@link #addOnFrameScaleChangedListener(OnScaleChangedListener, Executor)}添加的监听器,
+     * 可以在回调中调用
+     * @param listener
+     */
+    public void removeOnScaleChangedListener(OnScaleChangedListener listener){
+        if(listener == null){
+            return;
+        }
+        int index = mScaleListenerList == null ? -1 : mScaleListenerList.indexOf(listener);
+        if(index >= 0){
+            if(mScaleDispatchDepth > 0){
+                mScaleListenerList.set(index, null);
+                mScaleListenerRemoved = true;
+            }else{
+                mScaleListenerList.remove(index);
+            }
+        }
+
+        int frameListenerCount = mFrameScaleListenerList == null ? 0 : mFrameScaleListenerList.size();
+        for (int i = frameListenerCount - 1; i >= 0; i--) {
+            FrameScaleDelivery delivery = mFrameScaleListenerList.get(i);
+            if(delivery != null && delivery.listener == listener){
+                // 已经提交到Executor上的回调也不再执行
+                delivery.removed = true;
+                if(mScaleDispatchDepth > 0){
+                    mFrameScaleListenerList.set(i, null);
+                    mScaleListenerRemoved = true;
+                }else{
+                    mFrameScaleListenerList.remove(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * add OnStateChangedListener
+     * @param listener
+     */
+    public void addOnStateChangedListener(OnStateChangedListener listener){
+        if(listener != null){
+            if(mStateListenerList == null){
+                mStateListenerList = new ArrayList<>();
+            }
+            mStateListenerList.add(listener);
+        }
+    }
+
+    /**
+     * add OnStateTransitionListener
+     * @param listener
+     */
+    public void addOnStateTransitionListener(OnStateTransitionListener listener){
+        if(listener != null){
+            if(mTransitionListenerList == null){
+                mTransitionListenerList = new ArrayList<>();
+            }
+            mTransitionListenerList.add(listener);
+        }
+    }
+
+    /**
+     * 离开打开或关闭状态（开始过渡）的次数
+     * @return
+     */
+    public int getTransitionCount(){
+        return mTransitionCount;
+    }
+
+    /**
+     * 状态真正发生变化（OnStateChangedListener被回调）的次数
+     * @return
+     */
+    public int getStateChangeCount(){
+        return mStateChangeCount;
+    }
+
+    /**
+     * 停留在同一状态而没有回调OnStateChangedListener的次数,
+     * 以前的版本中这些都会重复回调
+     * @return
+     */
+    public int getSuppressedStateCount(){
+        return mSuppressedStateCount;
+    }
+
+    public void resetTransitionCounts(){
+        mTransitionCount = 0;
+        mStateChangeCount = 0;
+        mSuppressedStateCount = 0;
+    }
+
+    public void setOnGetCanScaleListener(OnGetCanScaleListener listener){
+        mCanScaleListener = listener;
+    }
+
+    /**
+     *  {@link #setState(int state, boolean animationEnable)}
+     * @param state
+     */
+    public void setState(int state){
+        setState(state, true);
+    }
+
+    /**
+     * 设置状态变化
+     * @param state open or close
+     * @param animationEnable change state with or without animation
+     */
+    public void setState(int state, boolean animationEnable) {
+
+        // 第一次布局之前没有尺寸，也没有必要做动画，只记录下来
+        if(mPendingScaleApply){
+            mState = state;
+            mCurrentScale = state == STATE_CLOSE ? 1f : mMinScale;
+            return;
+        }
+
+        if(!animationEnable)
+        {
+            // 直接跳到目标, 正在进行的动画或回弹不能再覆盖它
+            cancelAnimator();
+            if(state == STATE_CLOSE){
+                mCurrentScale = 1;
+            }else{
+                mCurrentScale = mMinScale;
+            }
+            mSlopLength = getSlopLength(mCurrentScale);
+            doSetScale();
+            mState = state;
+            maybeEndTransition();
+
+        }else{
+            cancelAnimator();
+
+            if(state == STATE_CLOSE && mCurrentScale != 1){
+
+                mSlopLength = getSlopLength(1f);
+                startTween(mCurrentScale, 1f, state);
+
+            }else if(state == STATE_OPEN && mCurrentScale != mMinScale){
+
+                mSlopLength = getSlopLength(mMinScale);
+                startTween(mCurrentScale, mMinScale, state);
+            }else{
+                maybeEndTransition();
+            }
+        }
+    }
+
+    /**
+     * 获取当前状态开启或者关闭
+     * @return
+     */
+    public boolean isOpen(){
+
+        return mState == STATE_OPEN;
+    }
+
+    /**
+     * 直接设置打开的进度，用于和AppBar、滚动位置等外部进度联动
+     * 不会创建动画, 同一帧内的多次调用只执行一次doSetScale()
+     * 正在进行的动画或回弹会被停止
+     * 外部驱动的进度不算一次过渡, 停在中间时也不会提升硬件层、使用截图或记录帧耗时
+     * 手指正在拖动时忽略，第一次布局之前只记录下来
+     * @param progress 0 为关闭(scale = 1), 1 为打开(scale = minScale)
+     */
+    public void setProgress(float progress){
+        // 拖动由手指决定, 外部进度不能和它抢
+        if(mIsBeingDragged){
+            return;
+        }
+        progress = Math.max(0f, Math.min(progress, 1f));
+        float scale = ScaleMath.scaleForProgress(1 - progress, mMinScale);
+
+        // 和setState()一样，还没有尺寸时不能计算mSlopLength, 在第一次onLayout中设置
+        if(mPendingScaleApply){
+            mCurrentScale = scale;
+            if(scale == mMinScale || scale == 1f){
+                mState = scale == mMinScale ? STATE_OPEN : STATE_CLOSE;
+            }
+            return;
+        }
+
+        if(scale == mCurrentScale && !mTweenRunning && !mSpringRunning){
+            return;
+        }
+
+        cancelAnimator();
+        mCurrentScale = scale;
+        mSlopLength = getSlopLength(scale);
+
+        if(scale == mMinScale || scale == 1f){
+            mState = scale == mMinScale ? STATE_OPEN : STATE_CLOSE;
+        }
+        // 被停止的动画开始的过渡在这次更新之后结束
+        mEndTransitionAfterUpdate = mInTransition;
+        requestScaleUpdate();
+    }
+
+    /**
+     * @return 当前打开的进度, 0 为关闭, 1 为打开
+     */
+    public float getProgress(){
+        if(mMinScale >= 1f){
+            return 0f;
+        }
+        return 1 - ScaleMath.progress(mCurrentScale, mMinScale);
+    }
+
+    /**
+     * @param from scale
+     * @param to  scale
+     * @param state 动画结束时要设置的状态, -1 表示不改变
+     */
+    private void startTween(float from, float to, int state){
+        mTweenFrom = from;
+        mTweenTo = to;
+        mTweenState = state;
+        mTweenFrameMillis = mFrameAlignedDurationEnable
+                ? ScaleTransitionDriver.getFrameIntervalNanos(getContext()) / 1000000f : 0;
+        mTweenDuration = ScaleMath.frameAlignedDuration(DEFAULT_DURATION * Math.abs(to - from), mTweenFrameMillis);
+        // 和ValueAnimator一样以第一帧的vsync时间作为起点
+        mTweenStartTime = -1;
+        mTweenRunning = true;
+        startTransition();
+        ScaleTransitionDriver.getInstance().add(this);
+    }
+
+    /**
+     * 停止正在进行的动画和弹簧回弹
+     * 被取消的动画不结束过渡，接下来的拖动或动画会接着用
+     */
+    private void cancelAnimator(){
+        if(mTweenRunning || mSpringRunning){
+            mTweenRunning = false;
+            mSpringRunning = false;
+            ScaleTransitionDriver.getInstance().remove(this);
+        }
+    }
+
+    /**
+     * @return 是否正在动画或回弹
+     */
+    boolean isAnimating(){
+        return mTweenRunning || mSpringRunning;
+    }
+
+    /**
+     * 由{@link ScaleTransitionDriver}每帧调用一次
+     * @param time 这一帧的时间, 毫秒
+     * @return 是否还需要继续推进
+     */
+    boolean stepTransition(long time){
+        mLastFrameTime = time;
+        mInFrameCallback = true;
+        if(mTweenRunning){
+            stepTween(time);
+        }else if(mSpringRunning){
+            stepSpring(time);
+        }
+        mInFrameCallback = false;
+        return mTweenRunning || mSpringRunning;
+    }
+
+    private void stepTween(long time){
+        if(mTweenStartTime < 0){
+            mTweenStartTime = time;
+        }
+        float fraction = ScaleMath.tweenFraction(time - mTweenStartTime, mTweenDuration, mTweenFrameMillis);
+        float scale = ScaleMath.tween(mTweenFrom, mTweenTo, fraction);
+        if(mCurrentScale != scale){
+            mCurrentScale = scale;
+            doSetScale();
+        }
+
+        if(fraction >= 1f && mTweenRunning){
+            mTweenRunning = false;
+            if(mTweenState != -1){
+                mState = mTweenState;
+            }
+            maybeEndTransition();
+        }
+    }
+
+    /**
+     * 拖动了delta距离, 手指拖动和嵌套滑动共用
+     * @param delta 手指移动的距离
+     * @param predictedOffset 预测的位移，只用于显示
+     */
+    private void dragBy(float delta, float predictedOffset){
+        int height = getMeasuredHeight();
+        float slopLength = mSlopLength + delta;
+
+        // 超出范围的距离不累计，这样反向滑动时可以立即响应
+        float scale = ScaleMath.scaleForSlopLength(slopLength, height, mMinScale, mSlideUpOrDownEnable);
+        if(scale == mMinScale || scale == 1f){
+            slopLength = getSlopLength(scale);
+        }
+        mSlopLength = slopLength;
+
+        float predictedScale = scale;
+        if(predictedOffset != 0){
+            predictedScale = ScaleMath.scaleForSlopLength(slopLength + predictedOffset,
+                    height, mMinScale, mSlideUpOrDownEnable);
+        }
+
+        // 停在1或者minScale时继续往外拖，scale不会变化，不开始拖动和过渡,
+        // 比如放大的TouchImageView拖到边缘之后没有消费的滑动
+        if(!mIsBeingDragged && predictedScale == mCurrentScale){
+            return;
+        }
+        mIsBeingDragged = true;
+        mCaughtState = -1;
+        startTransition();
+
+        mCurrentScale = predictedScale;
+        mPredictionApplied = predictedScale != scale;
+        if(mPredictionApplied){
+            mLastDragTime = SystemClock.uptimeMillis();
+            schedulePredictionIdleCheck();
+        }
+
+        requestScaleUpdate();
+    }
+
+    private long getPredictionIdleTimeout(){
+        return (long) mTouchPredictor.getHorizon() + PREDICTION_IDLE_TIMEOUT;
+    }
+
+    /**
+     * 手指停下后不会再有move事件，预测的位移会一直留在画面上,
+     * 一段时间没有拖动时把它去掉。每次拖动只更新时间，不重复post
+     */
+    private void schedulePredictionIdleCheck(){
+        if(mPredictionIdlePosted){
+            return;
+        }
+        if(mPredictionIdleRunnable == null){
+            mPredictionIdleRunnable = new Runnable() {
+                @Override
+                public void run() {
+                    mPredictionIdlePosted = false;
+                    if(!mPredictionApplied){
+                        return;
+                    }
+                    long timeout = mTouchPredictor == null ? 0 : getPredictionIdleTimeout();
+                    long idle = SystemClock.uptimeMillis() - mLastDragTime;
+                    if(idle < timeout){
+                        mPredictionIdlePosted = true;
+                        postDelayed(this, timeout - idle);
+                    }else if(retractPrediction()){
+                        requestScaleUpdate();
+                    }
+                }
+            };
+        }
+        mPredictionIdlePosted = true;
+        postDelayed(mPredictionIdleRunnable, getPredictionIdleTimeout());
+    }
+
+    /**
+     * 去掉预测的位移，mCurrentScale回到手指实际位置对应的scale
+     * @return scale是否发生了变化
+     */
+    private boolean retractPrediction(){
+        if(!mPredictionApplied){
+            return false;
+        }
+        mPredictionApplied = false;
+        if(mPredictionIdlePosted){
+            mPredictionIdlePosted = false;
+            removeCallbacks(mPredictionIdleRunnable);
+        }
+        float scale = ScaleMath.scaleForSlopLength(mSlopLength, getMeasuredHeight(),
+                mMinScale, mSlideUpOrDownEnable);
+        if(scale == mCurrentScale){
+            return false;
+        }
+        mCurrentScale = scale;
+        return true;
+    }
+
+    /**
+     * 拖动结束, 手指抬起和嵌套滑动结束共用
+     * @param velocity 手指在y方向的速度，像素/秒
+     */
+    private void endDrag(float velocity){
+        mIsBeingDragged = false;
+        mTransitionCaught = false;
+        // 从手指实际的位置开始回弹
+        if(retractPrediction()){
+            requestScaleUpdate();
+        }
+        flushScaleUpdate();
+        int caughtState = mCaughtState;
+        mCaughtState = -1;
+        if (caughtState != -1) {
+            // 接住之后没有拖动，带着原来的速度继续过渡
+            settleTo(caughtState, mCaughtScaleVelocity);
+        }else if (mCurrentScale > mMinScale && mCurrentScale < 1f) {
+            settle(velocity);
+        }else if(mCurrentScale == mMinScale || mCurrentScale == 1f){
+            mState = mCurrentScale == mMinScale ? STATE_OPEN : STATE_CLOSE;
+        }
+        maybeEndTransition();
+    }
+
+    /**
+     * 按下时如果正在动画或回弹，停在当前的scale, 由这次手势接着拖动,
+     * 过渡不会结束，也不会从头开始
+     * @return 是否接住了正在进行的过渡
+     */
+    private boolean catchTransition(){
+        if(mTweenRunning){
+            mCaughtState = mTweenState != -1 ? mTweenState : mState;
+            mCaughtScaleVelocity = getTweenVelocity(AnimationUtils.currentAnimationTimeMillis());
+        }else if(mSpringRunning){
+            mCaughtState = mSpringState;
+            mCaughtScaleVelocity = mSpring.getVelocity();
+        }else{
+            mCaughtState = -1;
+            return false;
+        }
+
+        cancelAnimator();
+        flushScaleUpdate();
+        mSlopLength = getSlopLength(mCurrentScale);
+        mIsBeingDragged = true;
+        mTransitionCaught = true;
+        return true;
+    }
+
+    /**
+     * 当前动画的速度，AccelerateDecelerate插值的导数
+     */
+    private float getTweenVelocity(long time){
+        if(mTweenStartTime < 0){
+            return 0;
+        }
+        float fraction = ScaleMath.tweenFraction(time - mTweenStartTime, mTweenDuration, 0);
+        return ScaleMath.tweenVelocity(mTweenFrom, mTweenTo, fraction, mTweenDuration);
+    }
+
+    /**
+     * 手指抬起后根据速度选择目标状态，并用临界阻尼弹簧过渡过去
+     * @param velocity 手指在y方向的速度，像素/秒
+     */
+    private void settle(float velocity){
+        int height = getMeasuredHeight();
+        float scaleVelocity = ScaleMath.scaleVelocity(velocity, height, mSlideUpOrDownEnable);
+        float minScaleVelocity = Math.abs(ScaleMath.scaleVelocity(mMinimumFlingVelocity, height, true));
+
+        int state;
+        if(Math.abs(scaleVelocity) > minScaleVelocity){
+            state = scaleVelocity > 0 ? STATE_CLOSE : STATE_OPEN;
+        }else{
+            float half = (1 - mMinScale) / 2;
+            state = mCurrentScale >= mMinScale + half ? STATE_CLOSE : STATE_OPEN;
+        }
+        settleTo(state, scaleVelocity);
+    }
+
+    /**
+     * 从当前scale用弹簧过渡到state
+     * @param scaleVelocity 初始速度, scale/秒
+     */
+    private void settleTo(int state, float scaleVelocity){
+        cancelAnimator();
+        float target = state == STATE_CLOSE ? 1f : mMinScale;
+        if(mCurrentScale == target){
+            mState = state;
+            mSlopLength = getSlopLength(target);
+            return;
+        }
+
+        if(mSpring == null){
+            mSpring = new ScaleSpring();
+        }
+        mSpringState = state;
+        mSpringRunning = true;
+        startSpring(target, scaleVelocity, -1);
+        startTransition();
+        ScaleTransitionDriver.getInstance().add(this);
+    }
+
+    /**
+     * 从当前scale开始回弹, 静止时和setState()的动画一样长, 朝目标方向的速度越快越短
+     * @param time 起点的帧时间, -1表示从下一帧开始
+     */
+    private void startSpring(float target, float scaleVelocity, long time){
+        mSpring.setRestThreshold(getScaleRestThreshold());
+        mSpring.start(mCurrentScale, target, scaleVelocity,
+                DEFAULT_DURATION * Math.abs(target - mCurrentScale), time);
+    }
+
+    /**
+     * 半个像素对应的scale变化, 小于它时centerView的边缘和topView bottomView都移动不到半个像素
+     */
+    private float getScaleRestThreshold(){
+        float size = Math.max(getMeasuredWidth(), getMeasuredHeight());
+        if(mMinScale < 1f){
+            size = Math.max(size, Math.max(mTopViewMoveDistance, mBottomViewMoveDistance) / (1 - mMinScale));
+        }
+        return size > 0 ? 0.5f / size : 0;
+    }
+
+    private void stepSpring(long time){
+        boolean finished = mSpring.update(time);
+        float scale = ScaleMath.clamp(mSpring.getValue(), mMinScale);
+        if(mCurrentScale != scale){
+            mCurrentScale = scale;
+            doSetScale();
+        }
+
+        if(finished && mSpringRunning){
+            mSpringRunning = false;
+            mState = mSpringState;
+            mSlopLength = getSlopLength(mCurrentScale);
+            maybeEndTransition();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void postOnAnimationCompat(Runnable runnable){
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN){
+            postOnAnimation(runnable);
+        }else{
+            postDelayed(runnable, 1000 / 60);
+        }
+    }
+
+    /**
+     * 拖动时调用, 在下一帧的animation回调中执行doSetScale(),
+     * 同一帧内多次调用只会执行一次
+     */
+    private void requestScaleUpdate(){
+        if(!mFrameCoalesceEnable || Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN){
+            mAppliedScaleUpdates++;
+            doSetScale();
+            return;
+        }
+        if(!mScaleUpdatePending){
+            if(mScaleUpdateRunnable == null){
+                mScaleUpdateRunnable = new Runnable() {
+                    @Override
+                    public void run() {
+                        if(mScaleUpdatePending){
+                            mAppliedScaleUpdates++;
+                            mInFrameCallback = true;
+                            doSetScale();
+                            mInFrameCallback = false;
+                        }
+                    }
+                };
+            }
+            mScaleUpdatePending = true;
+            postOnAnimationCompat(mScaleUpdateRunnable);
+        }
+    }
+
+    /**
+     * 立即执行还未执行的doSetScale()
+     */
+    private void flushScaleUpdate(){
+        if(mScaleUpdatePending){
+            mAppliedScaleUpdates++;
+            doSetScale();
+        }
+    }
+
+    /**
+     * 只有状态真正变化的时候才回调OnStateChangedListener，
+     * 离开和到达打开/关闭状态时回调OnStateTransitionListener
+     */
+    private void dispatchStateIfChanged(){
+        int scaleState;
+        if(mCurrentScale == mMinScale){
+            scaleState = STATE_OPEN;
+        }else if(mCurrentScale == 1f){
+            scaleState = STATE_CLOSE;
+        }else{
+            scaleState = STATE_TRANSITION;
+        }
+
+        int previous = mScaleState;
+        if(scaleState == previous){
+            if(scaleState != STATE_TRANSITION){
+                mSuppressedStateCount++;
+            }
+            return;
+        }
+        mScaleState = scaleState;
+
+        // 从一个状态直接跳到另一个状态(没有动画)也算一次完整的过渡
+        if(previous == STATE_OPEN || previous == STATE_CLOSE){
+            mTransitionCount++;
+            int count = mTransitionListenerList == null ? 0 : mTransitionListenerList.size();
+            for (int i = 0; i < count; i++) {
+                mTransitionListenerList.get(i).onStateTransitionStart(previous == STATE_OPEN);
+            }
+        }
+
+        if(scaleState == STATE_TRANSITION){
+            return;
+        }
+
+        if(previous != STATE_UNKNOWN){
+            int count = mTransitionListenerList == null ? 0 : mTransitionListenerList.size();
+            for (int i = 0; i < count; i++) {
+                mTransitionListenerList.get(i).onStateTransitionEnd(scaleState == STATE_OPEN);
+            }
+        }
+
+        if(scaleState == mNotifiedState){
+            mSuppressedStateCount++;
+            return;
+        }
+        mNotifiedState = scaleState;
+        mStateChangeCount++;
+
+        int stateListenerCount = mStateListenerList == null ? 0 : mStateListenerList.size();
+
+        OnStateChangedListener mStateChangedListener;
+        for (int i = 0; i < stateListenerCount; i++) {
+            mStateChangedListener = mStateListenerList.get(i);
+            if(mStateChangedListener != null){
+                mStateChangedListener.onStateChanged(scaleState == STATE_OPEN);
+            }
+        }
+    }
+
+    private void requestFrameScaleDispatch(){
+        if(mFrameScalePending){
+            return;
+        }
+        if(mFrameScaleRunnable == null){
+            mFrameScaleRunnable = new Runnable() {
+                @Override
+                public void run() {
+                    mFrameScalePending = false;
+                    dispatchFrameScale();
+                }
+            };
+        }
+        mFrameScalePending = true;
+        postOnAnimationCompat(mFrameScaleRunnable);
+    }
+
+    private void dispatchFrameScale(){
+        mScaleDispatchDepth++;
+        float scale = mCurrentScale;
+        int count = mFrameScaleListenerList.size();
+        for (int i = 0; i < count; i++) {
+            FrameScaleDelivery delivery = mFrameScaleListenerList.get(i);
+            if(delivery != null){
+                delivery.deliver(scale);
+            }
+        }
+        mScaleDispatchDepth--;
+        trimRemovedScaleListeners();
+    }
+
+    /**
+     * 清理分发期间被移除（置null）的监听器
+     */
+    private void trimRemovedScaleListeners(){
+        if(mScaleDispatchDepth > 0 || !mScaleListenerRemoved){
+            return;
+        }
+        mScaleListenerRemoved = false;
+        int scaleListenerCount = mScaleListenerList == null ? 0 : mScaleListenerList.size();
+        for (int i = scaleListenerCount - 1; i >= 0; i--) {
+            if(mScaleListenerList.get(i) == null){
+                mScaleListenerList.remove(i);
+            }
+        }
+        int frameListenerCount = mFrameScaleListenerList == null ? 0 : mFrameScaleListenerList.size();
+        for (int i = frameListenerCount - 1; i >= 0; i--) {
+            if(mFrameScaleListenerList.get(i) == null){
+                mFrameScaleListenerList.remove(i);
+            }
+        }
+    }
+
+    /**
+     * mSlopLength 和 scale 的换算, 与onTouchEvent中的计算相反
+     */
+    private float getSlopLength(float scale){
+        return ScaleMath.slopLengthForScale(scale, getMeasuredHeight(), mSlideUpOrDownEnable);
+    }
+
+    /**
+     * 开始拖动或开始动画时调用，重复调用无影响
+     */
+    private void startTransition(){
+        if(mInTransition){
+            return;
+        }
+        mInTransition = true;
+        if(mSnapshotTransitionEnable){
+            captureSnapshot();
+        }
+        if(mLayerTransitionEnable){
+            promoteLayers();
+        }
+        if(mMetricsListener != null){
+            startMetrics();
+        }
+    }
+
+    /**
+     * 没有拖动也没有动画的时候才算过渡结束
+     */
+    private void maybeEndTransition(){
+        if(mIsBeingDragged || mTweenRunning || mSpringRunning){
+            return;
+        }
+        endTransition();
+    }
+
+    private void endTransition(){
+        if(!mInTransition){
+            return;
+        }
+        mInTransition = false;
+        demoteLayers();
+        releaseSnapshot();
+        if(mMetricsRecording){
+            stopMetrics();
+            mMetricsListener.onGestureMetrics(mMetrics);
+        }
+    }
+
+    private void startMetrics(){
+        if(mMetricsRecording || Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN){
+            return;
+        }
+        mMetricsRecording = true;
+        mMetrics.reset(ScaleTransitionDriver.getFrameIntervalNanos(getContext()));
+        mLastFrameTimeNanos = 0;
+        postMetricsFrameCallback();
+        traceTransition(true);
+    }
+
+    private void stopMetrics(){
+        if(!mMetricsRecording){
+            return;
+        }
+        mMetricsRecording = false;
+        removeMetricsFrameCallback();
+        traceTransition(false);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void postMetricsFrameCallback(){
+        if(mMetricsFrameCallback == null){
+            mMetricsFrameCallback = new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    if(!mMetricsRecording){
+                        return;
+                    }
+                    if(mLastFrameTimeNanos != 0){
+                        mMetrics.addFrame(frameTimeNanos - mLastFrameTimeNanos);
+                    }
+                    mLastFrameTimeNanos = frameTimeNanos;
+                    Choreographer.getInstance().postFrameCallback(this);
+                }
+            };
+        }
+        Choreographer.getInstance().postFrameCallback((Choreographer.FrameCallback) mMetricsFrameCallback);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void removeMetricsFrameCallback(){
+        if(mMetricsFrameCallback != null){
+            Choreographer.getInstance().removeFrameCallback((Choreographer.FrameCallback) mMetricsFrameCallback);
+        }
+    }
+
+    /**
+     * 过渡跨越很多帧, Trace.beginSection()必须在同一个消息里结束, 所以用异步trace:
+     * Trace.asyncTraceBegin()/asyncTraceEnd() 是隐藏的API, 只能反射调用, 取不到时不记录。
+     * 同一个ScaleLayout的过渡不会重叠, 用identityHashCode区分不同的ScaleLayout
+     * @param begin true开始, false结束
+     */
+    private void traceTransition(boolean begin){
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2){
+            return;
+        }
+        if(!sAsyncTraceResolved){
+            sAsyncTraceResolved = true;
+            try {
+                sAsyncTraceBegin = Trace.class.getMethod("asyncTraceBegin", long.class, String.class, int.class);
+                sAsyncTraceEnd = Trace.class.getMethod("asyncTraceEnd", long.class, String.class, int.class);
+            } catch (Exception e) {
+                Log.w(TAG, "async trace is unavailable", e);
+                sAsyncTraceBegin = null;
+                sAsyncTraceEnd = null;
+            }
+        }
+        Method method = begin ? sAsyncTraceBegin : sAsyncTraceEnd;
+        if(method == null){
+            return;
+        }
+        try {
+            method.invoke(null, TRACE_TAG_VIEW, TRACE_TRANSITION, System.identityHashCode(this));
+        } catch (Exception e) {
+            Log.w(TAG, "async trace failed", e);
+            sAsyncTraceBegin = null;
+            sAsyncTraceEnd = null;
+        }
+    }
+
+    private void promoteLayers(){
+        if(mPromotedLayers != 0 || !isHardwareAccelerated()){
+            return;
+        }
+        mLayerFrameCount = 0;
+        mPromotedLayers |= promoteLayer(mTopView, LAYER_TOP);
+        // 使用截图时centerView不会被绘制，不需要硬件层
+        if(!mSnapshotActive){
+            mPromotedLayers |= promoteLayer(mCenterView, LAYER_CENTER);
+        }
+        mPromotedLayers |= promoteLayer(mBottomView, LAYER_BOTTOM);
+
+        if(mPromotedLayers != 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN){
+            addLayerDrawListener();
+        }
+    }
+
+    /**
+     * 已经设置过layerType的view不做处理，也不会在结束时被恢复
+     */
+    private int promoteLayer(View view, int flag){
+        if(view != null && view.getLayerType() == LAYER_TYPE_NONE){
+            view.setLayerType(LAYER_TYPE_HARDWARE, null);
+            return flag;
+        }
+        return 0;
+    }
+
+    private void demoteLayers(){
+        if(mPromotedLayers == 0){
+            return;
+        }
+        if((mPromotedLayers & LAYER_TOP) != 0 && mTopView != null){
+            mTopView.setLayerType(LAYER_TYPE_NONE, null);
+        }
+        if((mPromotedLayers & LAYER_CENTER) != 0){
+            mCenterView.setLayerType(LAYER_TYPE_NONE, null);
+        }
+        if((mPromotedLayers & LAYER_BOTTOM) != 0 && mBottomView != null){
+            mBottomView.setLayerType(LAYER_TYPE_NONE, null);
+        }
+        mPromotedLayers = 0;
+
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN){
+            removeLayerDrawListener();
+        }
 
-    /**
-     * add OnStateChangedListener
-     * @param listener
-     */
-    public void addOnStateChangedListener(OnStateChangedListener listener){
-        if(listener != null){
-            mStateListenerList.add(listener);
+        if(BuildConfig.DEBUG) {
+            Log.d(TAG, "layer frames : " + mLayerFrameCount);
         }
     }
 
-    public void setOnGetCanScaleListener(OnGetCanScaleListener listener){
-        mCanScaleListener = listener;
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void addLayerDrawListener(){
+        if(mLayerDrawListener == null){
+            mLayerDrawListener = new ViewTreeObserver.OnDrawListener() {
+                @Override
+                public void onDraw() {
+                    mLayerFrameCount++;
+                }
+            };
+        }
+        getViewTreeObserver().addOnDrawListener((ViewTreeObserver.OnDrawListener) mLayerDrawListener);
     }
 
-    /**
-     *  {@link #setState(int state, boolean animationEnable)}
-     * @param state
-     */
-    public void setState(int state){
-        setState(state, true);
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void removeLayerDrawListener(){
+        if(mLayerDrawListener != null){
+            getViewTreeObserver().removeOnDrawListener((ViewTreeObserver.OnDrawListener) mLayerDrawListener);
+        }
     }
 
     /**
-     * 设置状态变化
-     * @param state open or close
-     * @param animationEnable change state with or without animation
+     * 把centerView绘制到可复用的Bitmap中, 大小不变时不重新创建
      */
-    public void setState(final int state, boolean animationEnable) {
-
-        if(!animationEnable)
-        {
-            if(state == STATE_CLOSE){
-                mSlopLength = 0;
-                mCurrentScale = 1;
-            }else{
-                if(mSlideUpOrDownEnable) {
-                    mSlopLength = -getMeasuredHeight() * (1 - mMinScale) * 1.25f;
-                }else{
-                    mSlopLength = getMeasuredHeight() * (1 - mMinScale) * 1.25f;
-                }
-                mCurrentScale = mMinScale;
-            }
-            doSetScale();
-            mState = state;
+    private void captureSnapshot(){
+        if(mSnapshotActive || mCenterView == null){
+            return;
+        }
+        int width = mCenterView.getWidth();
+        int height = mCenterView.getHeight();
+        if(width <= 0 || height <= 0){
+            return;
+        }
 
-        }else{
-            if(animator != null){
-                animator.cancel();
-                animator = null;
+        if(mSnapshotBitmap == null || mSnapshotBitmap.getWidth() != width
+                || mSnapshotBitmap.getHeight() != height){
+            recycleSnapshotBitmap();
+            try {
+                mSnapshotBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            }catch (OutOfMemoryError e){
+                Log.w(TAG, "snapshot bitmap " + width + "x" + height + " out of memory");
+                return;
             }
-
-            if(state == STATE_CLOSE && mCurrentScale != 1){
-
-                mSlopLength = 0;
-                animator = getAnimator(mCurrentScale, 1f);
-
-            }else if(state == STATE_OPEN && mCurrentScale != mMinScale){
-
-                if(mSlideUpOrDownEnable) {
-                    mSlopLength = -getMeasuredHeight() * (1 - mMinScale) * 1.25f;
-                }else{
-                    mSlopLength = getMeasuredHeight() * (1 - mMinScale) * 1.25f;
-                }
-                animator = getAnimator(mCurrentScale, mMinScale);
+            if(mSnapshotCanvas == null){
+                mSnapshotCanvas = new Canvas();
+                mSnapshotPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
             }
+            mSnapshotCanvas.setBitmap(mSnapshotBitmap);
+        }else{
+            mSnapshotBitmap.eraseColor(Color.TRANSPARENT);
+        }
 
-            if(animator != null) {
-                animator.addListener(new AnimatorListenerAdapter() {
-
-                    @Override
-                    public void onAnimationEnd(Animator animation) {
-                        mState = state;
-                    }
+        int saveCount = mSnapshotCanvas.save();
+        mSnapshotCanvas.translate(-mCenterView.getScrollX(), -mCenterView.getScrollY());
+        mCenterView.draw(mSnapshotCanvas);
+        mSnapshotCanvas.restoreToCount(saveCount);
 
-                });
-                animator.start();
-            }
-        }
+        mSnapshotActive = true;
+        invalidate();
     }
 
     /**
-     * 获取当前状态开启或者关闭
-     * @return
+     * 恢复绘制centerView, 并把当前的scale同步给它
      */
-    public boolean isOpen(){
-
-        return mState == STATE_OPEN;
+    private void releaseSnapshot(){
+        if(!mSnapshotActive){
+            return;
+        }
+        mSnapshotActive = false;
+        if(mCenterView != null){
+            doSetCenterView(mCurrentScale);
+        }
+        invalidate();
     }
 
-    /**
-     * @param from scale
-     * @param to  scale
-     * @return
-     */
-    private ValueAnimator getAnimator(float from, float to){
+    private void recycleSnapshotBitmap(){
+        if(mSnapshotBitmap != null){
+            if(mSnapshotCanvas != null){
+                mSnapshotCanvas.setBitmap(null);
+            }
+            mSnapshotBitmap.recycle();
+            mSnapshotBitmap = null;
+        }
+    }
 
-        ValueAnimator animator = ValueAnimator.ofFloat(from, to);
+    @Override
+    protected boolean drawChild(Canvas canvas, View child, long drawingTime) {
+        if(!mSnapshotActive || child != mCenterView){
+            return super.drawChild(canvas, child, drawingTime);
+        }
 
-        animator.setDuration((long)(DEFAULT_DURATION * Math.abs(to - from)));
-        animator.addUpdateListener(new ValueAnimator.AnimatorUpdateListener() {
-            @Override
-            public void onAnimationUpdate(ValueAnimator animation) {
-                float scale = (Float) animation.getAnimatedValue();
-                if(mCurrentScale != scale){
-                    mCurrentScale = scale;
-                    doSetScale();
-                }
-            }
-        });
-        return animator;
+        int saveCount = canvas.save();
+        canvas.translate(child.getLeft() + child.getTranslationX(),
+                child.getTop() + child.getTranslationY());
+        canvas.scale(mCurrentScale, mCurrentScale, getCenterViewPivotX(), getCenterViewPivotY());
+        canvas.drawBitmap(mSnapshotBitmap, 0, 0, mSnapshotPaint);
+        canvas.restoreToCount(saveCount);
+        return false;
     }
 
     /**
@@ -345,9 +1712,25 @@ public class ScaleLayout extends FrameLayout{
      * 3.设置 mCenterView的scale
      * 4.设置topView and BottomView 的动画（渐变和位移）
      */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
     private void doSetScale() {
 
-        int scaleListenerCount = mScaleListenerList.size();
+        // 直接调用时取消还未执行的合并更新，它的结果已经包含在这次调用中
+        if(mScaleUpdatePending){
+            mScaleUpdatePending = false;
+            removeCallbacks(mScaleUpdateRunnable);
+        }
+
+        long startTime = 0;
+        if(mMetricsRecording){
+            startTime = System.nanoTime();
+            if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2){
+                Trace.beginSection(TRACE_SET_SCALE);
+            }
+        }
+
+        mScaleDispatchDepth++;
+        int scaleListenerCount = mScaleListenerList == null ? 0 : mScaleListenerList.size();
 
         OnScaleChangedListener mScaleChangedListener;
         for (int i = 0; i < scaleListenerCount; i++) {
@@ -356,21 +1739,43 @@ public class ScaleLayout extends FrameLayout{
                 mScaleChangedListener.onScaleChanged(mCurrentScale);
             }
         }
+        mScaleDispatchDepth--;
+        trimRemovedScaleListeners();
+
+        dispatchStateIfChanged();
 
-        if(mCurrentScale == mMinScale || mCurrentScale == 1f){
-            int stateListenerCount = mStateListenerList.size();
+        if(mSnapshotActive){
+            // 截图在drawChild中按当前scale绘制，centerView本身等过渡结束再更新
+            invalidate();
+        }else{
+            doSetCenterView(mCurrentScale);
+        }
+        doSetTopAndBottomView(mCurrentScale);
 
-            OnStateChangedListener mStateChangedListener;
-            for (int i = 0; i < stateListenerCount; i++) {
-                mStateChangedListener = mStateListenerList.get(i);
-                if(mStateChangedListener != null){
-                    mStateChangedListener.onStateChanged(mCurrentScale == mMinScale);
+        if(mFrameScaleListenerList != null && !mFrameScaleListenerList.isEmpty()){
+            if(mInFrameCallback){
+                // 已经在这一帧里, 属性设置完之后直接回调, 和画面是同一帧
+                if(mFrameScalePending){
+                    mFrameScalePending = false;
+                    removeCallbacks(mFrameScaleRunnable);
                 }
+                dispatchFrameScale();
+            }else{
+                requestFrameScaleDispatch();
             }
         }
 
-        doSetCenterView(mCurrentScale);
-        doSetTopAndBottomView(mCurrentScale);
+        if(startTime != 0){
+            if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2){
+                Trace.endSection();
+            }
+            mMetrics.addScaleUpdate(System.nanoTime() - startTime);
+        }
+
+        if(mEndTransitionAfterUpdate){
+            mEndTransitionAfterUpdate = false;
+            maybeEndTransition();
+        }
     }
 
     /**
@@ -388,35 +1793,34 @@ public class ScaleLayout extends FrameLayout{
     }
 
     public float getCenterViewPivotX(){
-        return (getMeasuredWidth() - getPaddingLeft() - getPaddingRight()) / 2f;
+        return mCenterViewPivotX;
     }
 
     public float getCenterViewPivotY(){
-        float pivotY = 0;
-        if(mTopView == null && mBottomView != null) {
-
-            pivotY = 0;
-
-        }else if(mBottomView == null && mTopView != null){
-
-            pivotY = getMeasuredHeight() - getPaddingBottom() - getPaddingTop();
-
-        }else if(mTopView == null && mBottomView == null){
-
-            pivotY = (getMeasuredHeight() - getPaddingTop() - getPaddingBottom()) / 2f;
+        return mCenterViewPivotY;
+    }
 
-        }else{
-            int totalDistance = mTopViewMoveDistance + mBottomViewMoveDistance;
-            int temp = getMeasuredHeight() - getPaddingBottom() - getPaddingTop();
-            if(totalDistance != 0) {
-                pivotY = temp * mTopViewMoveDistance / totalDistance;
-            }
+    /**
+     * 计算centerView的pivot, 只在onLayout中调用，
+     * 避免每一帧都重新计算
+     * @return pivot是否发生了变化
+     */
+    private boolean computeCenterViewPivot(){
+        float pivotX = (getMeasuredWidth() - getPaddingLeft() - getPaddingRight()) / 2f;
+        float pivotY = ScaleMath.pivotY(mTopView != null, mBottomView != null,
+                mTopViewMoveDistance, mBottomViewMoveDistance,
+                getMeasuredHeight() - getPaddingTop() - getPaddingBottom());
+
+        if(pivotX == mCenterViewPivotX && pivotY == mCenterViewPivotY){
+            return false;
         }
+        mCenterViewPivotX = pivotX;
+        mCenterViewPivotY = pivotY;
 
         if(BuildConfig.DEBUG) {
             Log.d(TAG, "pivotY : " + pivotY);
         }
-        return pivotY;
+        return true;
     }
 
     /**
@@ -426,12 +1830,25 @@ public class ScaleLayout extends FrameLayout{
     public void doSetTopAndBottomView(float scale){
 
         //这里把mMinScale(0.7f) ~ 1 区间的值映射到 0 ~ 1
-        float value = (scale - mMinScale) / (1 - mMinScale);
-        float alpha = 1 - value;
+        float value = ScaleMath.progress(scale, mMinScale);
+        float alpha = ScaleMath.decorationAlpha(value);
+
+        if(mTranslationTransitionEnable){
+            // topView bottomView在布局中的位置就是完全打开时的位置
+            if(mTopView != null){
+                mTopView.setAlpha(alpha);
+                mTopView.setTranslationY(ScaleMath.decorationOffset(mTopViewMoveDistance, value));
+            }
+            if(mBottomView != null){
+                mBottomView.setAlpha(alpha);
+                mBottomView.setTranslationY(-ScaleMath.decorationOffset(mBottomViewMoveDistance, value));
+            }
+            return;
+        }
 
         int top = 0;
         if(mTopView != null){
-            top = getPaddingTop() + (int)(mTopViewMoveDistance * value);
+            top = getPaddingTop() + (int) ScaleMath.decorationOffset(mTopViewMoveDistance, value);
             mTopView.setAlpha(alpha);
             mTopView.setTop(top);
             mTopView.setBottom(top + mTopView.getMeasuredHeight());
@@ -439,7 +1856,7 @@ public class ScaleLayout extends FrameLayout{
 
         if(mBottomView != null){
             top = getMeasuredHeight() - getPaddingBottom()
-                    -mBottomViewMoveDistance  - (int)(mBottomViewMoveDistance * value);
+                    -mBottomViewMoveDistance  - (int) ScaleMath.decorationOffset(mBottomViewMoveDistance, value);
             mBottomView.setAlpha(alpha);
             mBottomView.setTop(top);
             mBottomView.setBottom(top + mBottomView.getMeasuredHeight());
@@ -490,29 +1907,150 @@ public class ScaleLayout extends FrameLayout{
             mBottomView.setAlpha(0);
         }
 
-        setState(mState, false);
+        // 这时还没有测量, 只记录初始scale, 在第一次onLayout中设置
+        mCurrentScale = mState == STATE_CLOSE ? 1f : mMinScale;
+        mPendingScaleApply = true;
     }
 
     /**
      * 使得centerView 大小等同ScaleLayout的大小
      * 如果不想这样处理，也可以在触摸事件中使用TouchDelegate
+     *
+     * 不再先调用FrameLayout的onMeasure, 否则centerView会先按自己的LayoutParams测量一次,
+     * 再按EXACTLY测量一次, 两次的MeasureSpec不同，每次布局都要完整测量两遍。
+     * 这里每个子view只测量一次, MeasureSpec没有变化时由View.measure()自己跳过。
+     * 其余和FrameLayout一致: 计入foreground的padding和最小尺寸,
+     * ScaleLayout不是EXACTLY时所有match_parent的子view按最终大小再测量一次
      * @param widthMeasureSpec
      * @param heightMeasureSpec
      */
     @Override
     protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
-        super.onMeasure(widthMeasureSpec, heightMeasureSpec);
 
-        final int widthSize = MeasureSpec.getSize(widthMeasureSpec);
-        final int heightSize = MeasureSpec.getSize(heightMeasureSpec);
+        final boolean measureMatchParentChildren =
+                MeasureSpec.getMode(widthMeasureSpec) != MeasureSpec.EXACTLY
+                || MeasureSpec.getMode(heightMeasureSpec) != MeasureSpec.EXACTLY;
+        mMatchParentChildren.clear();
+
+        updateForegroundPadding();
+        final int paddingWidth = getPaddingLeftWithForeground() + getPaddingRightWithForeground();
+        final int paddingHeight = getPaddingTopWithForeground() + getPaddingBottomWithForeground();
+
+        int maxWidth = 0;
+        int maxHeight = 0;
+        int childState = 0;
+
+        final int childCount = getChildCount();
+        for (int i = 0; i < childCount; i++) {
+            final View child = getChildAt(i);
+            if(child == mCenterView || child.getVisibility() == GONE){
+                continue;
+            }
+            measureChildWithMargins(child, widthMeasureSpec, 0, heightMeasureSpec, 0);
+            final LayoutParams lp = (LayoutParams) child.getLayoutParams();
+            maxWidth = Math.max(maxWidth, child.getMeasuredWidth() + lp.leftMargin + lp.rightMargin);
+            maxHeight = Math.max(maxHeight, child.getMeasuredHeight() + lp.topMargin + lp.bottomMargin);
+            childState = combineMeasuredStates(childState, child.getMeasuredState());
+            if(measureMatchParentChildren
+                    && (lp.width == LayoutParams.MATCH_PARENT || lp.height == LayoutParams.MATCH_PARENT)){
+                mMatchParentChildren.add(child);
+            }
+        }
+
+        if(mCenterView.getVisibility() != GONE){
+            int layoutWidth = Math.max(0, MeasureSpec.getSize(widthMeasureSpec) - paddingWidth);
+            int layoutHeight = Math.max(0, MeasureSpec.getSize(heightMeasureSpec) - paddingHeight);
+            mCenterView.measure(MeasureSpec.makeMeasureSpec(layoutWidth, MeasureSpec.EXACTLY),
+                    MeasureSpec.makeMeasureSpec(layoutHeight, MeasureSpec.EXACTLY));
+            maxWidth = Math.max(maxWidth, mCenterView.getMeasuredWidth());
+            maxHeight = Math.max(maxHeight, mCenterView.getMeasuredHeight());
+            childState = combineMeasuredStates(childState, mCenterView.getMeasuredState());
+        }
+
+        maxWidth = Math.max(maxWidth + paddingWidth, getSuggestedMinimumWidth());
+        maxHeight = Math.max(maxHeight + paddingHeight, getSuggestedMinimumHeight());
+
+        final Drawable foreground = getForeground();
+        if(foreground != null){
+            maxWidth = Math.max(maxWidth, foreground.getMinimumWidth());
+            maxHeight = Math.max(maxHeight, foreground.getMinimumHeight());
+        }
+
+        setMeasuredDimension(resolveSizeAndState(maxWidth, widthMeasureSpec, childState),
+                resolveSizeAndState(maxHeight, heightMeasureSpec,
+                        childState << MEASURED_HEIGHT_STATE_SHIFT));
+
+        if(!measureMatchParentChildren){
+            return;
+        }
+
+        // centerView总是占满ScaleLayout, 最终大小和测量时用的不同时(比如UNSPECIFIED)也要再测量
+        if(mCenterView.getVisibility() != GONE
+                && (mCenterView.getMeasuredWidth() != getMeasuredWidth() - paddingWidth
+                || mCenterView.getMeasuredHeight() != getMeasuredHeight() - paddingHeight)){
+            mCenterView.measure(
+                    MeasureSpec.makeMeasureSpec(Math.max(0, getMeasuredWidth() - paddingWidth), MeasureSpec.EXACTLY),
+                    MeasureSpec.makeMeasureSpec(Math.max(0, getMeasuredHeight() - paddingHeight), MeasureSpec.EXACTLY));
+        }
+
+        // 和FrameLayout一样，match_parent的子view要按ScaleLayout最终的大小再测量一次,
+        // 通常ScaleLayout都是match_parent, 不会走到这里
+        final int count = mMatchParentChildren.size();
+        for (int i = 0; i < count; i++) {
+            remeasureMatchParentChild(mMatchParentChildren.get(i), widthMeasureSpec, heightMeasureSpec,
+                    paddingWidth, paddingHeight);
+        }
+        mMatchParentChildren.clear();
+    }
+
+    private void remeasureMatchParentChild(View child, int widthMeasureSpec, int heightMeasureSpec,
+                                           int paddingWidth, int paddingHeight){
+        final LayoutParams lp = (LayoutParams) child.getLayoutParams();
+
+        int childWidthMeasureSpec;
+        if(lp.width == LayoutParams.MATCH_PARENT){
+            int width = Math.max(0, getMeasuredWidth() - paddingWidth - lp.leftMargin - lp.rightMargin);
+            childWidthMeasureSpec = MeasureSpec.makeMeasureSpec(width, MeasureSpec.EXACTLY);
+        }else{
+            childWidthMeasureSpec = getChildMeasureSpec(widthMeasureSpec,
+                    paddingWidth + lp.leftMargin + lp.rightMargin, lp.width);
+        }
+
+        int childHeightMeasureSpec;
+        if(lp.height == LayoutParams.MATCH_PARENT){
+            int height = Math.max(0, getMeasuredHeight() - paddingHeight - lp.topMargin - lp.bottomMargin);
+            childHeightMeasureSpec = MeasureSpec.makeMeasureSpec(height, MeasureSpec.EXACTLY);
+        }else{
+            childHeightMeasureSpec = getChildMeasureSpec(heightMeasureSpec,
+                    paddingHeight + lp.topMargin + lp.bottomMargin, lp.height);
+        }
+        child.measure(childWidthMeasureSpec, childHeightMeasureSpec);
+    }
+
+    /**
+     * FrameLayout中对应的方法不是公开的，这里按foregroundInsidePadding的默认值(true)计算
+     */
+    private void updateForegroundPadding(){
+        final Drawable foreground = getForeground();
+        if(foreground == null || !foreground.getPadding(mForegroundPadding)){
+            mForegroundPadding.setEmpty();
+        }
+    }
+
+    private int getPaddingLeftWithForeground(){
+        return Math.max(getPaddingLeft(), mForegroundPadding.left);
+    }
 
-        int layoutHeight = heightSize - getPaddingTop() - getPaddingBottom();
-        int layoutWidth = widthSize - getPaddingLeft() - getPaddingRight();
+    private int getPaddingRightWithForeground(){
+        return Math.max(getPaddingRight(), mForegroundPadding.right);
+    }
 
-        int childWidthMeasureSpec = MeasureSpec.makeMeasureSpec(layoutWidth, MeasureSpec.EXACTLY);
-        int childHeightMeasureSpec = MeasureSpec.makeMeasureSpec(layoutHeight, MeasureSpec.EXACTLY);
+    private int getPaddingTopWithForeground(){
+        return Math.max(getPaddingTop(), mForegroundPadding.top);
+    }
 
-        mCenterView.measure(childWidthMeasureSpec, childHeightMeasureSpec);
+    private int getPaddingBottomWithForeground(){
+        return Math.max(getPaddingBottom(), mForegroundPadding.bottom);
     }
 
     @Override
@@ -527,8 +2065,20 @@ public class ScaleLayout extends FrameLayout{
             mTopViewMoveDistance = mTopView.getMeasuredHeight();
         }
 
+        if(computeCenterViewPivot() && !mPendingScaleApply){
+            doSetCenterView(mCurrentScale);
+        }
+
         if(mSuggestScaleEnable){
-            setMinScale(getSuggestScale());
+            updateSuggestScale();
+        }
+
+        if(mPendingScaleApply){
+            mPendingScaleApply = false;
+            mSlopLength = getSlopLength(mCurrentScale);
+            doSetScale();
+        }else if(mTranslationTransitionEnable){
+            doSetTopAndBottomView(mCurrentScale);
         }
     }
 
@@ -551,12 +2101,26 @@ public class ScaleLayout extends FrameLayout{
 
             case MotionEvent.ACTION_DOWN:
 
+                // 正在过渡时按下直接接住，后面的事件都由自己处理
+                intercept = isEnabled() && mSlideScaleEnable && catchTransition();
                 onTouchEvent(ev);
                 mInitialMotionX = ev.getX();
                 mInitialMotionY = ev.getY();
                 break;
 
             case MotionEvent.ACTION_MOVE:
+                // 和onTouchEvent的条件一致, 否则拦截之后收不到UP, 过渡不会结束
+                if(!isEnabled() || !mSlideScaleEnable){
+                    break;
+                }
+                // 子view通过嵌套滑动处理，不再拦截，也不需要询问OnGetCanScaleListener
+                if(mNestedScrollInProgress){
+                    break;
+                }
+                // 拦截之前的move事件不会进入onTouchEvent, 在这里记录速度
+                if(mVelocityTracker != null){
+                    mVelocityTracker.addMovement(ev);
+                }
                 final float deltaX = Math.abs(ev.getX() - mInitialMotionX);
                 final float deltaY = Math.abs(ev.getY() - mInitialMotionY);
 
@@ -566,6 +2130,11 @@ public class ScaleLayout extends FrameLayout{
                 }else {
                     intercept = deltaY > deltaX && deltaY > mTouchSlop;
                 }
+
+                if(intercept){
+                    mIsBeingDragged = true;
+                    startTransition();
+                }
                 break;
         }
         return intercept;
@@ -582,6 +2151,15 @@ public class ScaleLayout extends FrameLayout{
     public boolean onTouchEvent(MotionEvent ev) {
 
         if (!isEnabled() || !mSlideScaleEnable) {
+            // 拖动过程中被禁用，结束这次拖动
+            int action = ev.getActionMasked();
+            if(mIsBeingDragged && (action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_CANCEL)){
+                if(mVelocityTracker != null){
+                    mVelocityTracker.recycle();
+                    mVelocityTracker = null;
+                }
+                endDrag(0);
+            }
             return super.onTouchEvent(ev);
         }
 
@@ -591,29 +2169,42 @@ public class ScaleLayout extends FrameLayout{
 
             case MotionEvent.ACTION_DOWN:
                 downY = ev.getY();
+                if(mVelocityTracker == null){
+                    mVelocityTracker = VelocityTracker.obtain();
+                }else{
+                    mVelocityTracker.clear();
+                }
+                mVelocityTracker.addMovement(ev);
+                mReceivedTouchSamples = 0;
+                mAppliedScaleUpdates = 0;
+                if(mTouchPredictor != null){
+                    mTouchPredictor.reset();
+                    mTouchPredictor.addSample(ev.getEventTime(), ev.getY());
+                }
                 return true;
 
             case MotionEvent.ACTION_MOVE:
+                if(mVelocityTracker != null){
+                    mVelocityTracker.addMovement(ev);
+                }
+                // 高采样率的屏幕上一个move事件可能包含多个历史采样
+                final int historySize = ev.getHistorySize();
+                mReceivedTouchSamples += historySize + 1;
+                if(mTouchPredictor != null){
+                    for (int i = 0; i < historySize; i++) {
+                        mTouchPredictor.addSample(ev.getHistoricalEventTime(i), ev.getHistoricalY(i));
+                    }
+                    mTouchPredictor.addSample(ev.getEventTime(), ev.getY());
+                }
                 if(mCanScaleListener != null && !mCanScaleListener.onGetCanScale(ev.getY() - downY > 0)){
                     return super.onTouchEvent(ev);
                 }
-                if (Math.abs(ev.getY() - downY) > mTouchSlop) {
-
-                    mSlopLength += (ev.getY() - downY);
-
-                    float scale;
-                    if (mSlideUpOrDownEnable) {
-
-                        scale = 1 + (0.8f * mSlopLength / getMeasuredHeight());
-                    } else {
-                        scale = 1 - (0.8f * mSlopLength / getMeasuredHeight());
-                    }
+                // 接住过渡之后不再等待touchSlop, 避免停顿
+                if (mTransitionCaught || Math.abs(ev.getY() - downY) > mTouchSlop) {
 
-                    scale = Math.min(scale, 1f);
-
-                    mCurrentScale = Math.max(mMinScale, scale);
-
-                    doSetScale();
+                    // 预测的位移只用于显示，不计入mSlopLength
+                    float predictedOffset = mTouchPredictor != null ? mTouchPredictor.predictOffset() : 0;
+                    dragBy(ev.getY() - downY, predictedOffset);
 
                     downY = ev.getY();
                 }
@@ -621,55 +2212,202 @@ public class ScaleLayout extends FrameLayout{
                 break;
             case MotionEvent.ACTION_UP:
             case MotionEvent.ACTION_CANCEL:
-                if (mCurrentScale > mMinScale && mCurrentScale < 1f) {
-
-                    float half = (1 - mMinScale) / 2;
-
-                    if (mCurrentScale >= mMinScale + half) {
-
-                        setState(STATE_CLOSE, true);
-                    } else {
-
-                        setState(STATE_OPEN, true);
+                float velocity = 0;
+                if(mVelocityTracker != null){
+                    if(ev.getActionMasked() == MotionEvent.ACTION_UP){
+                        mVelocityTracker.addMovement(ev);
+                        mVelocityTracker.computeCurrentVelocity(1000);
+                        velocity = mVelocityTracker.getYVelocity();
                     }
+                    mVelocityTracker.recycle();
+                    mVelocityTracker = null;
                 }
+                endDrag(velocity);
                 break;
         }
 
         return super.onTouchEvent(ev);
     }
 
+    @Override
+    public boolean onStartNestedScroll(View child, View target, int nestedScrollAxes) {
+        return isEnabled() && mSlideScaleEnable
+                && (nestedScrollAxes & ViewCompat.SCROLL_AXIS_VERTICAL) != 0;
+    }
+
+    @Override
+    public void onNestedScrollAccepted(View child, View target, int axes) {
+        mNestedScrollingParentHelper.onNestedScrollAccepted(child, target, axes);
+        mNestedScrollInProgress = true;
+        mNestedFlingVelocity = 0;
+        catchTransition();
+    }
+
+    /**
+     * 已经缩放了一部分的时候，先由ScaleLayout消费，回到打开或关闭状态后再交给子view
+     */
+    @Override
+    public void onNestedPreScroll(View target, int dx, int dy, int[] consumed) {
+        if(dy != 0 && mCurrentScale > mMinScale && mCurrentScale < 1f){
+            dragBy(-dy, 0);
+            consumed[1] = dy;
+        }
+    }
+
+    /**
+     * 子view没有消费的部分用来缩放, 滑动距离的方向和手指移动方向相反
+     */
+    @Override
+    public void onNestedScroll(View target, int dxConsumed, int dyConsumed, int dxUnconsumed, int dyUnconsumed) {
+        if(dyUnconsumed != 0){
+            dragBy(-dyUnconsumed, 0);
+        }
+    }
+
+    @Override
+    public boolean onNestedPreFling(View target, float velocityX, float velocityY) {
+        if(mCurrentScale > mMinScale && mCurrentScale < 1f){
+            mNestedFlingVelocity = -velocityY;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean onNestedFling(View target, float velocityX, float velocityY, boolean consumed) {
+        if(!consumed && mIsBeingDragged){
+            mNestedFlingVelocity = -velocityY;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void onStopNestedScroll(View target) {
+        mNestedScrollingParentHelper.onStopNestedScroll(target);
+        mNestedScrollInProgress = false;
+        if(mIsBeingDragged){
+            endDrag(mNestedFlingVelocity);
+        }
+    }
+
+    @Override
+    public int getNestedScrollAxes() {
+        return mNestedScrollingParentHelper.getNestedScrollAxes();
+    }
+
     /**
      * 存储当前状态
      * @return
      */
     @Override
     public Parcelable onSaveInstanceState() {
-        Bundle bundle = new Bundle();
-        bundle.putParcelable("superState", super.onSaveInstanceState());
-        bundle.putSerializable(TAG, mState);
-        return bundle;
+        SavedState ss = new SavedState(super.onSaveInstanceState());
+        ss.minScale = mMinScale;
+
+        // 正在动画或回弹时保存它的终点
+        if(mTweenRunning){
+            ss.scale = mTweenTo;
+            ss.state = mTweenState != -1 ? mTweenState : mState;
+        }else if(mSpringRunning){
+            ss.scale = mSpring.getTarget();
+            ss.state = mSpringState;
+        }else{
+            ss.scale = mCurrentScale;
+            ss.state = mState;
+        }
+        return ss;
     }
 
     @Override
     public void onRestoreInstanceState(Parcelable state) {
-        if(state instanceof Bundle) {
-            Bundle bundle = (Bundle) state;
-            mState = (int) bundle.getSerializable(TAG);
-            state = bundle.getParcelable("superState");
-            setState(mState, true);
+        if(!(state instanceof SavedState)) {
+            super.onRestoreInstanceState(state);
+            return;
+        }
+        SavedState ss = (SavedState) state;
+        super.onRestoreInstanceState(ss.getSuperState());
+
+        cancelAnimator();
+        if(ss.minScale > 0f && ss.minScale < 1f){
+            mMinScale = ss.minScale;
+        }
+        mState = ss.state;
+        mCurrentScale = ScaleMath.clamp(ss.scale, mMinScale);
+
+        // 直接跳到保存的scale, 不做动画; 还没有测量时等到onLayout中再设置
+        if(getMeasuredHeight() > 0){
+            mPendingScaleApply = false;
+            mSlopLength = getSlopLength(mCurrentScale);
+            doSetScale();
+        }else{
+            mPendingScaleApply = true;
+        }
+    }
+
+    /**
+     * 保存状态, 当前(或正在过渡到的)scale 和 minScale
+     */
+    static class SavedState extends BaseSavedState {
+
+        int state;
+        float scale;
+        float minScale;
+
+        SavedState(Parcelable superState) {
+            super(superState);
+        }
+
+        private SavedState(Parcel in) {
+            super(in);
+            state = in.readInt();
+            scale = in.readFloat();
+            minScale = in.readFloat();
         }
-        super.onRestoreInstanceState(state);
+
+        @Override
+        public void writeToParcel(Parcel out, int flags) {
+            super.writeToParcel(out, flags);
+            out.writeInt(state);
+            out.writeFloat(scale);
+            out.writeFloat(minScale);
+        }
+
+        public static final Parcelable.Creator<SavedState> CREATOR = new Parcelable.Creator<SavedState>() {
+            @Override
+            public SavedState createFromParcel(Parcel in) {
+                return new SavedState(in);
+            }
+
+            @Override
+            public SavedState[] newArray(int size) {
+                return new SavedState[size];
+            }
+        };
     }
 
     @Override
     protected void onDetachedFromWindow() {
-        super.onDetachedFromWindow();
-
-        if(animator != null){
-            animator.cancel();
-            animator = null;
+        if(retractPrediction()){
+            requestScaleUpdate();
+        }
+        flushScaleUpdate();
+        cancelAnimator();
+        if(mFrameScalePending){
+            mFrameScalePending = false;
+            removeCallbacks(mFrameScaleRunnable);
+        }
+        mIsBeingDragged = false;
+        mTransitionCaught = false;
+        mCaughtState = -1;
+        if(mVelocityTracker != null){
+            mVelocityTracker.recycle();
+            mVelocityTracker = null;
         }
+        endTransition();
+        recycleSnapshotBitmap();
+
+        super.onDetachedFromWindow();
     }
 
     /**
@@ -682,18 +2420,83 @@ public class ScaleLayout extends FrameLayout{
         void onScaleChanged(float currentScale);
     }
 
+    /**
+     * {@link #addOnFrameScaleChangedListener(OnScaleChangedListener, Executor)}
+     * 添加的监听器，记录最新的scale, 通过Executor执行时同一时刻最多只有一个在排队
+     */
+    private static class FrameScaleDelivery implements Runnable{
+
+        final OnScaleChangedListener listener;
+        final Executor executor;
+
+        volatile float scale;
+        volatile boolean queued;
+        volatile boolean removed;
+
+        FrameScaleDelivery(OnScaleChangedListener listener, Executor executor){
+            this.listener = listener;
+            this.executor = executor;
+        }
+
+        void deliver(float scale){
+            this.scale = scale;
+            if(executor == null){
+                if(!removed){
+                    listener.onScaleChanged(scale);
+                }
+            }else if(!queued){
+                queued = true;
+                executor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            // 先清除标记再读取scale, 保证之后的deliver()要么被这次读到，要么重新提交
+            queued = false;
+            if(!removed){
+                listener.onScaleChanged(scale);
+            }
+        }
+    }
+
     /**
      * state == false 当完全关闭（scale == 1f）
      * state == true  或当完全开启的时候(scale = mMinScale)
+     * 只有状态真正发生变化的时候才会回调
      */
     public interface OnStateChangedListener{
 
         void onStateChanged(boolean state);
     }
 
+    /**
+     * 状态过渡的开始和结束
+     * onStateTransitionStart 离开打开或关闭状态时回调
+     * onStateTransitionEnd   到达打开或关闭状态时回调，即使回到了原来的状态
+     *                        （这种情况不会回调OnStateChangedListener）
+     */
+    public interface OnStateTransitionListener{
+
+        void onStateTransitionStart(boolean fromOpen);
+
+        void onStateTransitionEnd(boolean open);
+    }
+
+    /**
+     * 每次过渡结束时回调帧耗时统计
+     * {@link #setOnGestureMetricsListener(OnGestureMetricsListener)}
+     */
+    public interface OnGestureMetricsListener{
+
+        void onGestureMetrics(GestureMetrics metrics);
+    }
+
     /**
      * 返回是否可以scale,主要为了适配部分有滑动冲突的view
      * 如TouchImageView, 甚至webView等
+     * 支持嵌套滑动的子view（NestedScrollingChild）不需要设置，
+     * 它们没有消费的滑动会直接用来缩放
      * isScrollSown = true  代表向下，
      * isScrollSown = false 代表向上
      */
@@ -0,0 +1,173 @@
+package deadline.scalelayout;
+
+/**
+ * ScaleLayout 中和平台无关的计算：推荐的minScale, centerView的pivot,
+ * 滑动距离和scale的换算, topView bottomView的位移和透明度, 过渡动画的插值。
+ * 不依赖View, 可以在JVM上做基准测试，也可以在非UI线程中使用
+ */
+public final class ScaleMath {
+
+    /**
+     * 滑动距离换算为scale的系数, scale = 1 ± SLIDE_FACTOR * slopLength / height
+     */
+    public static final float SLIDE_FACTOR = 0.8f;
+
+    private ScaleMath(){
+    }
+
+    /**
+     * 使topView bottomView 不被centerView覆盖的最小scale
+     * @param decorationHeight topView 和 bottomView 的高度之和
+     * @param contentHeight 去掉padding后的高度
+     */
+    public static float suggestScale(int decorationHeight, int contentHeight){
+        return 1 - decorationHeight * 1f / contentHeight;
+    }
+
+    /**
+     * centerView 缩放的pivotY, topView 和 bottomView 的高度可能不一样,
+     * 所以按两者移动距离的比例分配
+     * @param hasTop 是否有topView
+     * @param hasBottom 是否有bottomView
+     * @param topDistance topView 的移动距离
+     * @param bottomDistance bottomView 的移动距离
+     * @param contentHeight 去掉padding后的高度
+     */
+    public static float pivotY(boolean hasTop, boolean hasBottom,
+                               int topDistance, int bottomDistance, int contentHeight){
+        if(!hasTop && hasBottom){
+            return 0;
+        }else if(hasTop && !hasBottom){
+            return contentHeight;
+        }else if(!hasTop){
+            return contentHeight / 2f;
+        }
+
+        int totalDistance = topDistance + bottomDistance;
+        if(totalDistance == 0){
+            return 0;
+        }
+        return contentHeight * topDistance / totalDistance;
+    }
+
+    /**
+     * 把 minScale ~ 1 区间的scale映射到 0 ~ 1, 0 为完全打开, 1 为完全关闭
+     */
+    public static float progress(float scale, float minScale){
+        return (scale - minScale) / (1 - minScale);
+    }
+
+    /**
+     * progress 的反向换算
+     */
+    public static float scaleForProgress(float progress, float minScale){
+        return minScale + (1 - minScale) * progress;
+    }
+
+    /**
+     * topView bottomView 的透明度
+     */
+    public static float decorationAlpha(float progress){
+        return 1 - progress;
+    }
+
+    /**
+     * topView 相对完全打开时的位移, bottomView 取负值
+     */
+    public static float decorationOffset(int moveDistance, float progress){
+        return moveDistance * progress;
+    }
+
+    /**
+     * 由滑动距离计算scale, 结果限制在 minScale ~ 1 之间
+     * @param slideUpOrDown 上滑缩小下滑放大为true
+     */
+    public static float scaleForSlopLength(float slopLength, int height,
+                                           float minScale, boolean slideUpOrDown){
+        float delta = SLIDE_FACTOR * slopLength / height;
+        float scale = slideUpOrDown ? 1 + delta : 1 - delta;
+        return clamp(scale, minScale);
+    }
+
+    /**
+     * scaleForSlopLength 的反向换算
+     */
+    public static float slopLengthForScale(float scale, int height, boolean slideUpOrDown){
+        float slopLength = height * (1 - scale) / SLIDE_FACTOR;
+        return slideUpOrDown ? -slopLength : slopLength;
+    }
+
+    /**
+     * 手指速度(像素/秒)换算为scale的变化速度(每秒)
+     */
+    public static float scaleVelocity(float velocity, int height, boolean slideUpOrDown){
+        if(height <= 0){
+            return 0;
+        }
+        float scaleVelocity = SLIDE_FACTOR * velocity / height;
+        return slideUpOrDown ? scaleVelocity : -scaleVelocity;
+    }
+
+    public static float clamp(float scale, float minScale){
+        return Math.max(minScale, Math.min(scale, 1f));
+    }
+
+    /**
+     * 和ValueAnimator默认的AccelerateDecelerateInterpolator一致
+     * @param fraction 0 ~ 1
+     */
+    public static float accelerateDecelerate(float fraction){
+        return (float) (Math.cos((fraction + 1) * Math.PI) / 2.0f) + 0.5f;
+    }
+
+    /**
+     * 把动画时长调整为整数帧
+     * @param frameMillis 一帧的时长, 毫秒, 小于等于0时不调整
+     */
+    public static float frameAlignedDuration(float duration, float frameMillis){
+        if(frameMillis <= 0){
+            return duration;
+        }
+        return Math.max(1, Math.round(duration / frameMillis)) * frameMillis;
+    }
+
+    /**
+     * 动画经过elapsed毫秒时的进度
+     * vsync时间换算为毫秒时会被截断，整数帧的动画在最后一帧可能还差不到1毫秒,
+     * 指定frameMillis时先把经过的时间对齐到最近的整数帧
+     * @param elapsed 经过的时间, 毫秒
+     * @param duration 时长, 毫秒
+     * @param frameMillis 一帧的时长, 毫秒, 小于等于0时不对齐
+     * @return 0 ~ 1
+     */
+    public static float tweenFraction(float elapsed, float duration, float frameMillis){
+        if(duration <= 0){
+            return 1f;
+        }
+        if(frameMillis > 0){
+            elapsed = Math.round(elapsed / frameMillis) * frameMillis;
+        }
+        return Math.max(0f, Math.min(1f, elapsed / duration));
+    }
+
+    /**
+     * 按AccelerateDecelerate插值计算动画的值, fraction为1时正好等于to
+     */
+    public static float tween(float from, float to, float fraction){
+        if(fraction >= 1f){
+            return to;
+        }
+        return from + (to - from) * accelerateDecelerate(fraction);
+    }
+
+    /**
+     * 动画的速度, 即AccelerateDecelerate插值的导数, 单位/秒
+     */
+    public static float tweenVelocity(float from, float to, float fraction, float duration){
+        if(duration <= 0 || fraction <= 0f || fraction >= 1f){
+            return 0;
+        }
+        float derivative = (float) (Math.PI / 2 * Math.sin(fraction * Math.PI));
+        return (to - from) * derivative * 1000f / duration;
+    }
+}
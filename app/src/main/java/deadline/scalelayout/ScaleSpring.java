@@ -0,0 +1,205 @@
+package deadline.scalelayout;
+
+/**
+ * 临界阻尼弹簧，用于ACTION_UP之后的回弹
+ * 使用解析解计算位置和速度，结果只和经过的时间有关，
+ * 与帧率无关，计算过程中也不分配内存
+ *
+ * x(t) = (x0 + (v0 + w * x0) * t) * e^(-w * t)
+ * 其中 x0 = 起点 - 终点, v0 为初始速度, w 为角频率
+ *
+ * 角频率不是固定的，每次start()时按距离和速度计算:
+ * 静止开始时和原来的动画(maxDuration)同时到达,
+ * 朝目标方向的速度越快，弹簧越硬，到达得越早。
+ * 距离目标小于mRestThreshold(一般对应半个像素)时认为已经到达，
+ * 不会在最后留下一串看不出变化的帧
+ */
+final class ScaleSpring {
+
+    /**
+     * 按松手速度匀速走完全程所需时间的倍数，作为fling时的回弹时长
+     */
+    static final float FLING_DURATION_FACTOR = 1.5f;
+
+    /**
+     * fling的回弹时长下限, 毫秒, 太短看不出过渡
+     */
+    static final float MIN_DURATION = 48f;
+
+    /**
+     * 默认的停止阈值, 未通过setRestThreshold()设置时使用
+     */
+    private static final float DEFAULT_REST_THRESHOLD = 0.0005f;
+
+    /**
+     * 求角频率时二分查找的次数
+     */
+    private static final int SOLVE_ITERATIONS = 40;
+
+    private float mRestThreshold = DEFAULT_REST_THRESHOLD;
+
+    private float mFrequency;
+    private float mDuration;
+
+    private float mStartOffset;
+    private float mStartVelocity;
+    private float mTarget;
+    private long mStartTime;
+    private long mLastTime;
+
+    private float mValue;
+    private float mVelocity;
+
+    /**
+     * @param threshold 距离目标小于这个值时认为已经到达，通常为半个像素对应的scale
+     */
+    void setRestThreshold(float threshold){
+        if(threshold > 0){
+            mRestThreshold = threshold;
+        }
+    }
+
+    /**
+     * @param from 起始值
+     * @param to 目标值
+     * @param velocity 初始速度, 单位/秒
+     * @param maxDuration 静止开始时的时长, 毫秒, 任何速度下都不会超过这个时长
+     * @param time 开始时间, 毫秒, 小于0时以第一次update()的时间为起点
+     */
+    void start(float from, float to, float velocity, float maxDuration, long time){
+        mStartOffset = from - to;
+        mStartVelocity = velocity;
+        mTarget = to;
+        mStartTime = time;
+        mLastTime = time;
+        mValue = from;
+        mVelocity = velocity;
+
+        mDuration = computeDuration(mStartOffset, velocity, maxDuration);
+        mFrequency = computeFrequency(mStartOffset, velocity, mDuration, mRestThreshold);
+    }
+
+    /**
+     * 朝目标方向的速度足够快时，用按这个速度走完全程的时间的{@link #FLING_DURATION_FACTOR}倍,
+     * 其余情况和原来的动画一样长
+     */
+    static float computeDuration(float offset, float velocity, float maxDuration){
+        float duration = Math.max(0f, maxDuration);
+        // offset 和 velocity 符号相反时速度朝向目标
+        if(offset * velocity < 0){
+            float flingDuration = FLING_DURATION_FACTOR * 1000f * Math.abs(offset / velocity);
+            duration = Math.min(duration, Math.max(flingDuration, MIN_DURATION));
+        }
+        return duration;
+    }
+
+    /**
+     * 求角频率w, 使弹簧在duration时刻距离目标正好为threshold
+     *
+     * 令 u = w * T, A = |x0|, B = -v0 * T * sign(x0) (朝向目标时为正),
+     * 则 |x(T)| = (A * (1 + u) - B) * e^(-u), 在 u >= max(0, B / A) 时单调递减
+     */
+    static float computeFrequency(float offset, float velocity, float duration, float threshold){
+        float a = Math.abs(offset);
+        if(a <= threshold || duration <= 0){
+            return 0;
+        }
+        float t = duration / 1000f;
+        float b = -velocity * t * Math.signum(offset);
+
+        float lo = Math.max(0f, b / a);
+        float hi = lo + 1;
+        while(distanceAt(a, b, hi) > threshold){
+            hi *= 2;
+        }
+        for (int i = 0; i < SOLVE_ITERATIONS; i++) {
+            float mid = (lo + hi) / 2;
+            if(distanceAt(a, b, mid) > threshold){
+                lo = mid;
+            }else{
+                hi = mid;
+            }
+        }
+        return hi / t;
+    }
+
+    private static float distanceAt(float a, float b, float u){
+        return (float) ((a * (1 + u) - b) * Math.exp(-u));
+    }
+
+    /**
+     * 计算time时刻的值
+     * @param time 毫秒
+     * @return 是否已经到达目标值
+     */
+    boolean update(long time){
+        if(mStartTime < 0){
+            mStartTime = time;
+        }
+        mLastTime = time;
+        long elapsed = Math.max(0, time - mStartTime);
+        if(elapsed >= mDuration || mFrequency <= 0){
+            mValue = mTarget;
+            mVelocity = 0;
+            return true;
+        }
+
+        float t = elapsed / 1000f;
+        float w = mFrequency;
+        float b = mStartVelocity + w * mStartOffset;
+        float decay = (float) Math.exp(-w * t);
+
+        float offset = (mStartOffset + b * t) * decay;
+        mVelocity = (mStartVelocity - w * b * t) * decay;
+
+        // 速度很大时临界阻尼也会越过目标一次，越过即认为到达
+        boolean crossed = mStartOffset != 0 && offset * mStartOffset < 0;
+        if(crossed || Math.abs(offset) < mRestThreshold){
+            mValue = mTarget;
+            mVelocity = 0;
+            return true;
+        }
+        mValue = mTarget + offset;
+        return false;
+    }
+
+    /**
+     * 回弹过程中改变目标, 从最近一次update()的值和速度继续,
+     * 以那一次的时间为起点，下一帧正常推进，不会停顿也不会跳变。
+     * 剩下的时长不变(至少{@link #MIN_DURATION}), 不再按速度缩短,
+     * 所以目标不变时轨迹和原来完全一样
+     * @param to 新的目标值
+     */
+    void retarget(float to){
+        float elapsed = mStartTime < 0 ? 0 : mLastTime - mStartTime;
+        mStartOffset = mValue - to;
+        mStartVelocity = mVelocity;
+        mTarget = to;
+        mStartTime = mLastTime;
+        mDuration = Math.max(mDuration - elapsed, MIN_DURATION);
+        mFrequency = computeFrequency(mStartOffset, mStartVelocity, mDuration, mRestThreshold);
+    }
+
+    float getValue(){
+        return mValue;
+    }
+
+    float getVelocity(){
+        return mVelocity;
+    }
+
+    float getTarget(){
+        return mTarget;
+    }
+
+    /**
+     * @return 本次回弹的时长, 毫秒
+     */
+    float getDuration(){
+        return mDuration;
+    }
+
+    float getFrequency(){
+        return mFrequency;
+    }
+}
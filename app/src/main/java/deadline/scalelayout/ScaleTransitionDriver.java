@@ -0,0 +1,182 @@
+package deadline.scalelayout;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+import android.view.WindowManager;
+import android.view.animation.AnimationUtils;
+
+import java.util.ArrayList;
+
+/**
+ * 所有ScaleLayout共用的动画时钟
+ * 正在做动画或回弹的ScaleLayout注册到这里，每帧只注册一个Choreographer回调，
+ * 依次推进每个ScaleLayout, 没有活动的ScaleLayout时不占用任何帧回调。
+ * API 16 以下使用Handler模拟帧回调
+ * 只能在主线程中使用
+ */
+final class ScaleTransitionDriver {
+
+    private static final long FALLBACK_FRAME_DELAY = 1000 / 60;
+
+    private static ScaleTransitionDriver sInstance;
+
+    private final ArrayList<ScaleLayout> mLayouts = new ArrayList<>();
+
+    /**
+     * Choreographer.FrameCallback, 用Object保存避免低版本加载类失败
+     */
+    private Object mFrameCallback;
+    private Handler mHandler;
+    private Runnable mFrameRunnable;
+
+    private boolean mFrameScheduled;
+    private boolean mDispatching;
+    private boolean mLayoutRemoved;
+
+    /**
+     * 累计推进的帧数和这些帧推进所有ScaleLayout的总耗时, 用于benchmark
+     */
+    private long mTotalFrameCostNanos;
+    private int mFrameCount;
+
+    static ScaleTransitionDriver getInstance(){
+        if(sInstance == null){
+            sInstance = new ScaleTransitionDriver();
+        }
+        return sInstance;
+    }
+
+    private ScaleTransitionDriver(){
+    }
+
+    /**
+     * 屏幕一帧的时间, 取不到刷新率时按60Hz计算。
+     * ScaleLayout和TouchImageView按它对齐动画时长、统计超出预算的帧
+     */
+    static long getFrameIntervalNanos(Context context){
+        float refreshRate = 0;
+        WindowManager wm = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
+        if(wm != null){
+            refreshRate = wm.getDefaultDisplay().getRefreshRate();
+        }
+        if(refreshRate < 10){
+            refreshRate = 60;
+        }
+        return (long) (1000000000L / refreshRate);
+    }
+
+    /**
+     * 注册一个需要逐帧推进的ScaleLayout, 重复注册无效
+     */
+    void add(ScaleLayout layout){
+        if(!mLayouts.contains(layout)){
+            mLayouts.add(layout);
+        }
+        scheduleFrame();
+    }
+
+    /**
+     * 取消注册, 可以在帧回调中调用
+     */
+    void remove(ScaleLayout layout){
+        int index = mLayouts.indexOf(layout);
+        if(index < 0){
+            return;
+        }
+        if(mDispatching){
+            mLayouts.set(index, null);
+            mLayoutRemoved = true;
+        }else{
+            mLayouts.remove(index);
+        }
+    }
+
+    int getActiveCount(){
+        return mLayouts.size();
+    }
+
+    long getTotalFrameCostNanos(){
+        return mTotalFrameCostNanos;
+    }
+
+    int getFrameCount(){
+        return mFrameCount;
+    }
+
+    void resetFrameStats(){
+        mTotalFrameCostNanos = 0;
+        mFrameCount = 0;
+    }
+
+    /**
+     * @param time 这一帧的vsync时间, 毫秒, 和AnimationUtils.currentAnimationTimeMillis()同一时间基准
+     */
+    private void doFrame(long time){
+        mFrameScheduled = false;
+        long startTime = System.nanoTime();
+
+        // 本帧中新注册的ScaleLayout从下一帧开始推进
+        mDispatching = true;
+        int count = mLayouts.size();
+        for (int i = 0; i < count; i++) {
+            ScaleLayout layout = mLayouts.get(i);
+            if(layout != null && !layout.stepTransition(time)){
+                mLayouts.set(i, null);
+                mLayoutRemoved = true;
+            }
+        }
+        mDispatching = false;
+
+        if(mLayoutRemoved){
+            mLayoutRemoved = false;
+            for (int i = mLayouts.size() - 1; i >= 0; i--) {
+                if(mLayouts.get(i) == null){
+                    mLayouts.remove(i);
+                }
+            }
+        }
+
+        mFrameCount++;
+        mTotalFrameCostNanos += System.nanoTime() - startTime;
+
+        if(!mLayouts.isEmpty()){
+            scheduleFrame();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void scheduleFrame(){
+        if(mFrameScheduled){
+            return;
+        }
+        mFrameScheduled = true;
+
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN){
+            if(mFrameCallback == null){
+                mFrameCallback = new Choreographer.FrameCallback() {
+                    @Override
+                    public void doFrame(long frameTimeNanos) {
+                        // 使用vsync时间而不是回调执行的时间，帧间隔是均匀的
+                        ScaleTransitionDriver.this.doFrame(frameTimeNanos / 1000000);
+                    }
+                };
+            }
+            Choreographer.getInstance().postFrameCallback((Choreographer.FrameCallback) mFrameCallback);
+        }else{
+            if(mHandler == null){
+                mHandler = new Handler(Looper.getMainLooper());
+                mFrameRunnable = new Runnable() {
+                    @Override
+                    public void run() {
+                        doFrame(AnimationUtils.currentAnimationTimeMillis());
+                    }
+                };
+            }
+            mHandler.postDelayed(mFrameRunnable, FALLBACK_FRAME_DELAY);
+        }
+    }
+}
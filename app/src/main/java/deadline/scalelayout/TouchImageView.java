@@ -26,18 +26,24 @@ import android.os.Build.VERSION;
 import android.os.Build.VERSION_CODES;
 import android.os.Bundle;
 import android.os.Parcelable;
+import android.support.v4.view.NestedScrollingChild;
+import android.support.v4.view.NestedScrollingChildHelper;
+import android.support.v4.view.ViewCompat;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.GestureDetector;
 import android.view.MotionEvent;
 import android.view.ScaleGestureDetector;
 import android.view.View;
+import android.view.ViewConfiguration;
 import android.view.animation.AccelerateDecelerateInterpolator;
+import android.view.animation.AnimationUtils;
 import android.widget.ImageView;
 import android.widget.OverScroller;
 import android.widget.Scroller;
 
-public class TouchImageView extends ImageView {
+public class TouchImageView extends ImageView implements NestedScrollingChild {
 
     private static final String DEBUG = "DEBUG";
 
@@ -99,6 +105,62 @@ public class TouchImageView extends ImageView {
     private OnTouchListener userTouchListener = null;
     private OnTouchImageViewListener touchImageViewListener = null;
 
+    //
+    // Vertical drag that the image cannot use (e.g. when it is not zoomed or has hit its
+    // top/bottom edge) is reported to nested scrolling parents such as ScaleLayout.
+    //
+    private NestedScrollingChildHelper nestedScrollingChildHelper;
+    private int touchSlop;
+
+    //
+    // When true, the double tap zoom duration is rounded to a whole number of display
+    // refresh periods so the last frame lands exactly on the target zoom.
+    //
+    private boolean frameAlignedZoom;
+
+    //
+    // Tiled rendering of very large images, see setImageTiledURI(Uri). imageRequest is bumped by
+    // every setImage call so an asynchronous load that completes after another image was set is
+    // dropped.
+    //
+    private RegionTileRenderer tileRenderer;
+    private int imageRequest;
+
+    //
+    // Subsampled loading of setImageResource/setImageURI, see setSampledLoadingEnabled(boolean).
+    // The source is kept until the view has been measured.
+    //
+    private boolean sampledLoading;
+    private int pendingResId;
+    private Uri pendingUri;
+    private boolean sampledLoadRunning;
+
+    //
+    // A load started from onMeasure is posted to the next frame: a bitmap found in the memory
+    // cache is delivered synchronously, and setImageBitmap must not refit and request a layout
+    // in the middle of measuring.
+    //
+    private boolean sampledLoadPosted;
+    private final Runnable sampledLoadStarter = new Runnable() {
+        @Override
+        public void run() {
+            sampledLoadPosted = false;
+            if (hasPendingSource() && viewWidth > 0 && viewHeight > 0) {
+                startSampledLoad();
+            }
+        }
+    };
+
+    //
+    // Bitmap delivered by the sampled loader and the source being loaded or shown. The bitmap is
+    // retained in BitmapPool while displayed; on detach it is released, or the running load
+    // dropped, and the source is loaded again on the next measure, normally straight from
+    // BitmapMemoryCache.
+    //
+    private Bitmap sampledBitmap;
+    private int sampledResId;
+    private Uri sampledUri;
+
     public TouchImageView(Context context) {
         super(context);
         sharedConstructing(context);
@@ -135,6 +197,77 @@ public class TouchImageView extends ImageView {
         setState(State.NONE);
         onDrawReady = false;
         super.setOnTouchListener(new PrivateOnTouchListener());
+        nestedScrollingChildHelper = new NestedScrollingChildHelper(this);
+        nestedScrollingChildHelper.setNestedScrollingEnabled(true);
+        touchSlop = ViewConfiguration.get(context).getScaledTouchSlop();
+    }
+
+    @Override
+    public void setNestedScrollingEnabled(boolean enabled) {
+        nestedScrollingChildHelper.setNestedScrollingEnabled(enabled);
+    }
+
+    @Override
+    public boolean isNestedScrollingEnabled() {
+        return nestedScrollingChildHelper.isNestedScrollingEnabled();
+    }
+
+    @Override
+    public boolean startNestedScroll(int axes) {
+        return nestedScrollingChildHelper.startNestedScroll(axes);
+    }
+
+    @Override
+    public void stopNestedScroll() {
+        nestedScrollingChildHelper.stopNestedScroll();
+    }
+
+    @Override
+    public boolean hasNestedScrollingParent() {
+        return nestedScrollingChildHelper.hasNestedScrollingParent();
+    }
+
+    @Override
+    public boolean dispatchNestedScroll(int dxConsumed, int dyConsumed, int dxUnconsumed, int dyUnconsumed, int[] offsetInWindow) {
+        return nestedScrollingChildHelper.dispatchNestedScroll(dxConsumed, dyConsumed, dxUnconsumed, dyUnconsumed, offsetInWindow);
+    }
+
+    @Override
+    public boolean dispatchNestedPreScroll(int dx, int dy, int[] consumed, int[] offsetInWindow) {
+        return nestedScrollingChildHelper.dispatchNestedPreScroll(dx, dy, consumed, offsetInWindow);
+    }
+
+    @Override
+    public boolean dispatchNestedFling(float velocityX, float velocityY, boolean consumed) {
+        return nestedScrollingChildHelper.dispatchNestedFling(velocityX, velocityY, consumed);
+    }
+
+    @Override
+    public boolean dispatchNestedPreFling(float velocityX, float velocityY) {
+        return nestedScrollingChildHelper.dispatchNestedPreFling(velocityX, velocityY);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        nestedScrollingChildHelper.onDetachedFromWindow();
+        if (sampledLoadPosted) {
+            removeCallbacks(sampledLoadStarter);
+            sampledLoadPosted = false;
+        }
+        if (tileRenderer != null) {
+            tileRenderer.trimTiles();
+        }
+        if (sampledBitmap != null || sampledLoadRunning) {
+            int resId = sampledResId;
+            Uri uri = sampledUri;
+            if (sampledBitmap != null) {
+                super.setImageDrawable(null);
+            }
+            releaseImageState();
+            pendingResId = resId;
+            pendingUri = uri;
+        }
+        super.onDetachedFromWindow();
     }
 
     @Override
@@ -152,6 +285,11 @@ public class TouchImageView extends ImageView {
 
     @Override
     public void setImageResource(int resId) {
+        releaseImageState();
+        if (sampledLoading && resId != 0) {
+            loadSampled(resId, null);
+            return;
+        }
         super.setImageResource(resId);
         savePreviousImageValues();
         fitImageToView();
@@ -159,6 +297,7 @@ public class TouchImageView extends ImageView {
 
     @Override
     public void setImageBitmap(Bitmap bm) {
+        releaseImageState();
         super.setImageBitmap(bm);
         savePreviousImageValues();
         fitImageToView();
@@ -166,6 +305,9 @@ public class TouchImageView extends ImageView {
 
     @Override
     public void setImageDrawable(Drawable drawable) {
+        if (tileRenderer == null || drawable != tileRenderer.getBaseDrawable()) {
+            releaseImageState();
+        }
         super.setImageDrawable(drawable);
         savePreviousImageValues();
         fitImageToView();
@@ -173,11 +315,129 @@ public class TouchImageView extends ImageView {
 
     @Override
     public void setImageURI(Uri uri) {
+        releaseImageState();
+        if (sampledLoading && uri != null) {
+            loadSampled(0, uri);
+            return;
+        }
         super.setImageURI(uri);
         savePreviousImageValues();
         fitImageToView();
     }
 
+    /**
+     * Display a very large image without decoding it whole. A low resolution copy is shown
+     * first; as the user zooms in, only the tiles inside the viewport are decoded, in the
+     * background, at a resolution matching the current zoom. The image is opened
+     * asynchronously, so the drawable is set some time after this call returns.
+     * Raise the max zoom with {@link #setMaxZoom(float)} to let the user reach full resolution.
+     *
+     * @param uri content, file or android.resource uri of a JPEG or PNG image
+     */
+    public void setImageTiledURI(Uri uri) {
+        releaseImageState();
+        final int request = imageRequest;
+        RegionTileRenderer.load(context, uri, new RegionTileRenderer.Callback() {
+            @Override
+            public void onLoaded(RegionTileRenderer renderer) {
+                if (renderer == null) {
+                    return;
+                }
+                if (request != imageRequest) {
+                    renderer.release();
+                    return;
+                }
+                tileRenderer = renderer;
+                renderer.setTarget(TouchImageView.this);
+                setImageDrawable(renderer.getBaseDrawable());
+            }
+        });
+    }
+
+    /**
+     * Decode images passed to {@link #setImageResource(int)} and {@link #setImageURI(Uri)} off
+     * the main thread, once the view has been measured, at the lowest resolution that still
+     * shows full detail at the max zoom. Default value: false.
+     *
+     * @param enabled true to load resources and uris subsampled in the background.
+     */
+    public void setSampledLoadingEnabled(boolean enabled) {
+        sampledLoading = enabled;
+    }
+
+    private void loadSampled(int resId, Uri uri) {
+        //
+        // Show nothing rather than the previous image while the new one decodes.
+        //
+        super.setImageDrawable(null);
+        pendingResId = resId;
+        pendingUri = uri;
+        if (viewWidth > 0 && viewHeight > 0) {
+            startSampledLoad();
+        } else {
+            requestLayout();
+        }
+    }
+
+    private void startSampledLoad() {
+        final int request = imageRequest;
+        final int resId = pendingResId;
+        final Uri uri = pendingUri;
+        pendingResId = 0;
+        pendingUri = null;
+        sampledLoadRunning = true;
+        sampledResId = resId;
+        sampledUri = uri;
+
+        SampledImageLoader.load(context, resId, uri, viewWidth, viewHeight, maxScale,
+                mScaleType == ScaleType.CENTER_CROP, new SampledImageLoader.Callback() {
+            @Override
+            public void onLoaded(Bitmap bitmap) {
+                if (request != imageRequest) {
+                    BitmapPool.getInstance().release(bitmap);
+                    return;
+                }
+                sampledLoadRunning = false;
+                if (bitmap == null) {
+                    requestLayout();
+                    return;
+                }
+                //
+                // setImageBitmap fits the image to the already measured view.
+                //
+                setImageBitmap(bitmap);
+                sampledBitmap = bitmap;
+                sampledResId = resId;
+                sampledUri = uri;
+            }
+        });
+    }
+
+    private boolean hasPendingSource() {
+        return pendingResId != 0 || pendingUri != null;
+    }
+
+    /**
+     * Cancel pending loads and let go of the tiled renderer and the sampled bitmap of the
+     * current image.
+     */
+    private void releaseImageState() {
+        imageRequest++;
+        pendingResId = 0;
+        pendingUri = null;
+        sampledLoadRunning = false;
+        sampledResId = 0;
+        sampledUri = null;
+        if (sampledBitmap != null) {
+            BitmapPool.getInstance().release(sampledBitmap);
+            sampledBitmap = null;
+        }
+        if (tileRenderer != null) {
+            tileRenderer.release();
+            tileRenderer = null;
+        }
+    }
+
     @Override
     public void setScaleType(ScaleType type) {
         if (type == ScaleType.FIT_START || type == ScaleType.FIT_END) {
@@ -287,6 +547,13 @@ public class TouchImageView extends ImageView {
             delayedZoomVariables = null;
         }
         super.onDraw(canvas);
+
+        if (tileRenderer != null && getDrawable() == tileRenderer.getBaseDrawable()) {
+            int saveCount = canvas.save();
+            canvas.translate(getPaddingLeft(), getPaddingTop());
+            tileRenderer.draw(canvas, matrix, viewWidth, viewHeight);
+            canvas.restoreToCount(saveCount);
+        }
     }
 
     @Override
@@ -314,6 +581,16 @@ public class TouchImageView extends ImageView {
         superMaxScale = SUPER_MAX_MULTIPLIER * maxScale;
     }
 
+    /**
+     * Round the double tap zoom animation to a whole number of display frames.
+     * Default value: false.
+     *
+     * @param enabled true to align the zoom duration with the display refresh rate.
+     */
+    public void setFrameAlignedZoomEnabled(boolean enabled) {
+        frameAlignedZoom = enabled;
+    }
+
     /**
      * Get the min zoom multiplier.
      *
@@ -526,6 +803,19 @@ public class TouchImageView extends ImageView {
     @Override
     protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
         Drawable drawable = getDrawable();
+        if (drawable == null && (hasPendingSource() || sampledLoadRunning)) {
+            //
+            // The decode needs the view size, so take whatever space we are offered.
+            //
+            viewWidth = MeasureSpec.getSize(widthMeasureSpec);
+            viewHeight = MeasureSpec.getSize(heightMeasureSpec);
+            setMeasuredDimension(viewWidth, viewHeight);
+            if (hasPendingSource() && viewWidth > 0 && viewHeight > 0 && !sampledLoadPosted) {
+                sampledLoadPosted = true;
+                compatPostOnAnimation(sampledLoadStarter);
+            }
+            return;
+        }
         if (drawable == null || drawable.getIntrinsicWidth() == 0 || drawable.getIntrinsicHeight() == 0) {
             setMeasuredDimension(0, 0);
             return;
@@ -778,6 +1068,16 @@ public class TouchImageView extends ImageView {
 
         @Override
         public boolean onFling(MotionEvent e1, MotionEvent e2, float velocityX, float velocityY) {
+            //
+            // Nested scrolling velocities are in scroll direction, the opposite of the finger.
+            // A parent that is in the middle of its own transition takes the whole fling.
+            //
+            if (hasNestedScrollingParent()) {
+                if (dispatchNestedPreFling(-velocityX, -velocityY)) {
+                    return true;
+                }
+                dispatchNestedFling(-velocityX, -velocityY, getImageHeight() > viewHeight);
+            }
             if (fling != null) {
                 //
                 // If a previous fling is still active, it should be cancelled so that two flings
@@ -799,7 +1099,7 @@ public class TouchImageView extends ImageView {
             if (state == State.NONE) {
                 float targetZoom = (normalizedScale == minScale) ? maxScale : minScale;
                 DoubleTapZoom doubleTap = new DoubleTapZoom(targetZoom, e.getX(), e.getY(), false);
-                compatPostOnAnimation(doubleTap);
+                doubleTap.schedule();
                 consumed = true;
             }
             return consumed;
@@ -831,6 +1131,18 @@ public class TouchImageView extends ImageView {
         //
         private PointF last = new PointF();
 
+        //
+        // Raw (screen) coordinates for nested scrolling. They are not affected when the
+        // parent scales this view, which would otherwise feed back into the deltas.
+        //
+        private PointF downRaw = new PointF();
+        private float lastRawY;
+        private float rawDeltaY;
+        private float nestedRemainder;
+        private float preScrollRemainder;
+        private boolean nestedDragging;
+        private final int[] nestedConsumed = new int[2];
+
         @Override
         public boolean onTouch(View v, MotionEvent event) {
             mScaleDetector.onTouchEvent(event);
@@ -844,17 +1156,33 @@ public class TouchImageView extends ImageView {
                         if (fling != null)
                             fling.cancelFling();
                         setState(State.DRAG);
+                        downRaw.set(event.getRawX(), event.getRawY());
+                        lastRawY = event.getRawY();
+                        nestedRemainder = 0;
+                        preScrollRemainder = 0;
+                        nestedDragging = false;
+                        startNestedScroll(ViewCompat.SCROLL_AXIS_VERTICAL);
                         break;
 
                     case MotionEvent.ACTION_MOVE:
                         if (state == State.DRAG) {
                             float deltaX = curr.x - last.x;
                             float deltaY = curr.y - last.y;
+                            //
+                            // The parent gets the first go at a vertical drag, the image only
+                            // pans by what it leaves.
+                            //
+                            deltaY *= 1 - dispatchNestedPreDrag(event);
                             float fixTransX = getFixDragTrans(deltaX, viewWidth, getImageWidth());
                             float fixTransY = getFixDragTrans(deltaY, viewHeight, getImageHeight());
+                            matrix.getValues(m);
+                            float transY = m[Matrix.MTRANS_Y];
                             matrix.postTranslate(fixTransX, fixTransY);
                             fixTrans();
                             last.set(curr.x, curr.y);
+
+                            matrix.getValues(m);
+                            dispatchNestedDrag(deltaY, m[Matrix.MTRANS_Y] - transY);
                         }
                         break;
 
@@ -865,6 +1193,12 @@ public class TouchImageView extends ImageView {
                 }
             }
 
+            if (event.getActionMasked() == MotionEvent.ACTION_UP
+                    || event.getActionMasked() == MotionEvent.ACTION_CANCEL
+                    || event.getActionMasked() == MotionEvent.ACTION_POINTER_DOWN) {
+                stopNestedScroll();
+            }
+
             setImageMatrix(matrix);
 
             //
@@ -886,6 +1220,76 @@ public class TouchImageView extends ImageView {
             //
             return true;
         }
+
+        /**
+         * Offer a vertical drag to the nested scrolling parent before the image moves, so a
+         * partly scaled ScaleLayout returns to rest before the image starts panning. Nothing is
+         * offered until the drag is clearly vertical, so small vertical jitter during a
+         * horizontal swipe is not passed on.
+         *
+         * @param event current move event
+         * @return fraction of the drag consumed by the parent, from 0 to 1
+         */
+        private float dispatchNestedPreDrag(MotionEvent event) {
+            float rawY = event.getRawY();
+            rawDeltaY = rawY - lastRawY;
+            lastRawY = rawY;
+            if (!hasNestedScrollingParent()) {
+                return 0;
+            }
+
+            if (!nestedDragging) {
+                float totalX = Math.abs(event.getRawX() - downRaw.x);
+                float totalY = Math.abs(rawY - downRaw.y);
+                if (totalY <= touchSlop || totalY <= totalX) {
+                    return 0;
+                }
+                nestedDragging = true;
+            }
+
+            //
+            // Nested scroll distances are integers in scroll direction (opposite to the finger),
+            // keep the fraction for the next event.
+            //
+            preScrollRemainder -= rawDeltaY;
+            int dy = (int) preScrollRemainder;
+            preScrollRemainder -= dy;
+            if (dy == 0) {
+                return 0;
+            }
+            nestedConsumed[1] = 0;
+            if (!dispatchNestedPreScroll(0, dy, nestedConsumed, null)) {
+                return 0;
+            }
+            float consumed = Math.max(0f, Math.min(1f, (float) nestedConsumed[1] / dy));
+            rawDeltaY *= 1 - consumed;
+            return consumed;
+        }
+
+        /**
+         * Report the part of a vertical drag that neither the parent nor the image used to the
+         * nested scrolling parent.
+         *
+         * @param deltaY drag distance left for the image, in view coordinates
+         * @param movedY distance the image actually moved
+         */
+        private void dispatchNestedDrag(float deltaY, float movedY) {
+            if (!nestedDragging || !hasNestedScrollingParent()) {
+                return;
+            }
+
+            float unconsumed = rawDeltaY;
+            if (deltaY != 0) {
+                unconsumed = rawDeltaY * (1 - Math.min(1f, Math.abs(movedY / deltaY)));
+            }
+
+            nestedRemainder -= unconsumed;
+            int dyUnconsumed = (int) nestedRemainder;
+            nestedRemainder -= dyUnconsumed;
+            if (dyUnconsumed != 0 || movedY != 0) {
+                dispatchNestedScroll(0, -(int) movedY, 0, dyUnconsumed, null);
+            }
+        }
     }
 
     /**
@@ -930,7 +1334,7 @@ public class TouchImageView extends ImageView {
 
             if (animateToZoomBoundary) {
                 DoubleTapZoom doubleTap = new DoubleTapZoom(targetZoom, viewWidth / 2, viewHeight / 2, true);
-                compatPostOnAnimation(doubleTap);
+                doubleTap.schedule();
             }
         }
     }
@@ -969,8 +1373,10 @@ public class TouchImageView extends ImageView {
      */
     private class DoubleTapZoom implements Runnable {
 
-        private long startTime;
+        private long startTime = -1;
         private static final float ZOOM_TIME = 500;
+        private float zoomTime;
+        private float frameMillis;
         private float startZoom, targetZoom;
         private float bitmapX, bitmapY;
         private boolean stretchImageToSuper;
@@ -978,9 +1384,17 @@ public class TouchImageView extends ImageView {
         private PointF startTouch;
         private PointF endTouch;
 
+        //
+        // Choreographer.FrameCallback on API 16+. Kept as Object so this class still loads
+        // on older platforms.
+        //
+        private Object frameCallback;
+
         DoubleTapZoom(float targetZoom, float focusX, float focusY, boolean stretchImageToSuper) {
             setState(State.ANIMATE_ZOOM);
-            startTime = System.currentTimeMillis();
+            frameMillis = frameAlignedZoom
+                    ? ScaleTransitionDriver.getFrameIntervalNanos(context) / 1000000f : 0;
+            zoomTime = ScaleMath.frameAlignedDuration(ZOOM_TIME, frameMillis);
             this.startZoom = normalizedScale;
             this.targetZoom = targetZoom;
             this.stretchImageToSuper = stretchImageToSuper;
@@ -995,9 +1409,42 @@ public class TouchImageView extends ImageView {
             endTouch = new PointF(viewWidth / 2, viewHeight / 2);
         }
 
+        /**
+         * Post the next step. On API 16+ the step is driven by a Choreographer frame
+         * callback so it is interpolated at the vsync timestamp rather than at whatever
+         * time the callback happens to run.
+         */
+        @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+        void schedule() {
+            if (VERSION.SDK_INT >= VERSION_CODES.JELLY_BEAN) {
+                if (frameCallback == null) {
+                    frameCallback = new Choreographer.FrameCallback() {
+                        @Override
+                        public void doFrame(long frameTimeNanos) {
+                            step(frameTimeNanos / 1000000);
+                        }
+                    };
+                }
+                Choreographer.getInstance().postFrameCallback((Choreographer.FrameCallback) frameCallback);
+
+            } else {
+                compatPostOnAnimation(this);
+            }
+        }
+
         @Override
         public void run() {
-            float t = interpolate();
+            step(AnimationUtils.currentAnimationTimeMillis());
+        }
+
+        private void step(long frameTime) {
+            if (startTime < 0) {
+                //
+                // Like ValueAnimator, the first frame defines the start of the animation.
+                //
+                startTime = frameTime;
+            }
+            float t = interpolate(frameTime);
             double deltaScale = calculateDeltaScale(t);
             scaleImage(deltaScale, bitmapX, bitmapY, stretchImageToSuper);
             translateImageToCenterTouchPosition(t);
@@ -1016,7 +1463,7 @@ public class TouchImageView extends ImageView {
                 //
                 // We haven't finished zooming
                 //
-                compatPostOnAnimation(this);
+                schedule();
 
             } else {
                 //
@@ -1045,11 +1492,9 @@ public class TouchImageView extends ImageView {
          *
          * @return
          */
-        private float interpolate() {
-            long currTime = System.currentTimeMillis();
-            float elapsed = (currTime - startTime) / ZOOM_TIME;
-            elapsed = Math.min(1f, elapsed);
-            return interpolator.getInterpolation(elapsed);
+        private float interpolate(long frameTime) {
+            float fraction = ScaleMath.tweenFraction(frameTime - startTime, zoomTime, frameMillis);
+            return interpolator.getInterpolation(fraction);
         }
 
         /**
@@ -1259,6 +1704,11 @@ public class TouchImageView extends ImageView {
         }
     }
 
+    /**
+     * Length of one display refresh period.
+     *
+     * @return frame duration in milliseconds
+     */
     @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
     private void compatPostOnAnimation(Runnable runnable) {
         if (VERSION.SDK_INT >= VERSION_CODES.JELLY_BEAN) {
@@ -0,0 +1,145 @@
+package deadline.scalelayout;
+
+/**
+ * 根据最近的触摸采样预测手指接下来几毫秒的位置，用来抵消一帧左右的显示延迟
+ * 速度做指数平滑，预测的位移限制在 maxOffset 以内，
+ * 同时记录每次预测和实际位置的误差
+ */
+final class TouchPredictor {
+
+    static final float DEFAULT_HORIZON = 8f;
+    static final float DEFAULT_SMOOTHING = 0.5f;
+
+    /**
+     * 预测多少毫秒之后的位置
+     */
+    private float mHorizon = DEFAULT_HORIZON;
+
+    /**
+     * 速度平滑系数, 越大越相信最新的采样
+     */
+    private float mSmoothing = DEFAULT_SMOOTHING;
+
+    /**
+     * 预测位移的上限，防止过冲
+     */
+    private float mMaxOffset = Float.MAX_VALUE;
+
+    private boolean mHasSample;
+    private boolean mHasVelocity;
+    private long mLastTime;
+    private float mLastPosition;
+
+    /**
+     * 像素/毫秒
+     */
+    private float mVelocity;
+
+    /**
+     * 还没有被实际采样验证的预测
+     */
+    private boolean mPredictionPending;
+    private long mPredictedTime;
+    private float mPredictedPosition;
+
+    private double mErrorSum;
+    private int mErrorCount;
+
+    void setHorizon(float horizon){
+        mHorizon = Math.max(0, horizon);
+    }
+
+    float getHorizon(){
+        return mHorizon;
+    }
+
+    void setSmoothing(float smoothing){
+        mSmoothing = Math.max(0.01f, Math.min(1f, smoothing));
+    }
+
+    float getSmoothing(){
+        return mSmoothing;
+    }
+
+    void setMaxOffset(float maxOffset){
+        mMaxOffset = Math.abs(maxOffset);
+    }
+
+    /**
+     * 开始新的手势时调用, 不会清除误差统计
+     */
+    void reset(){
+        mHasSample = false;
+        mHasVelocity = false;
+        mPredictionPending = false;
+        mVelocity = 0;
+    }
+
+    void resetError(){
+        mErrorSum = 0;
+        mErrorCount = 0;
+    }
+
+    /**
+     * @param time 采样时间, 毫秒
+     * @param position 采样位置
+     */
+    void addSample(long time, float position){
+        if(mHasSample){
+            long dt = time - mLastTime;
+
+            if(mPredictionPending && time >= mPredictedTime){
+                // 用相邻两个采样插值出预测时刻的实际位置
+                float actual = position;
+                if(dt > 0){
+                    actual = mLastPosition + (position - mLastPosition) * (mPredictedTime - mLastTime) / dt;
+                }
+                mErrorSum += Math.abs(mPredictedPosition - actual);
+                mErrorCount++;
+                mPredictionPending = false;
+            }
+
+            if(dt > 0){
+                float velocity = (position - mLastPosition) / dt;
+                if(mHasVelocity){
+                    mVelocity += mSmoothing * (velocity - mVelocity);
+                }else{
+                    mVelocity = velocity;
+                    mHasVelocity = true;
+                }
+            }
+        }
+        mHasSample = true;
+        mLastTime = time;
+        mLastPosition = position;
+    }
+
+    /**
+     * @return 预测位置相对最后一个采样的位移
+     */
+    float predictOffset(){
+        if(!mHasVelocity){
+            return 0;
+        }
+        float offset = mVelocity * mHorizon;
+        offset = Math.max(-mMaxOffset, Math.min(mMaxOffset, offset));
+
+        if(!mPredictionPending){
+            mPredictionPending = true;
+            mPredictedTime = mLastTime + (long) mHorizon;
+            mPredictedPosition = mLastPosition + offset;
+        }
+        return offset;
+    }
+
+    /**
+     * 平均预测误差，像素
+     */
+    float getAverageError(){
+        return mErrorCount == 0 ? 0 : (float) (mErrorSum / mErrorCount);
+    }
+
+    int getErrorSampleCount(){
+        return mErrorCount;
+    }
+}
@@ -13,6 +13,8 @@ import android.widget.Toast;
 import java.util.ArrayList;
 import java.util.List;
 
+import deadline.scalelayout.BitmapMemoryCache;
+import deadline.scalelayout.BitmapPool;
 import deadline.scalelayout.R;
 import deadline.scalelayout.ScaleLayout;
 import deadline.scalelayout.TouchImageView;
@@ -44,6 +46,8 @@ public class ScaleViewPagerActivity extends AppCompatActivity {
         for (int i = 0; i < 3; i++) {
             View v = getLayoutInflater().inflate(R.layout.viewpager_item_view, null, false);
             TouchImageView iv = (TouchImageView) v.findViewById(R.id.child_image);
+            // 图片比屏幕大很多，按view的大小在后台线程解码
+            iv.setSampledLoadingEnabled(true);
 
             if(i == 0){
                 iv.setImageResource(R.mipmap.image_1);
@@ -70,15 +74,6 @@ public class ScaleViewPagerActivity extends AppCompatActivity {
             }
         });
 
-        mScaleLayout.setOnGetCanScaleListener(new ScaleLayout.OnGetCanScaleListener() {
-            @Override
-            public boolean onGetCanScale(boolean isScrollDown) {
-                int currentItem = mViewPager.getCurrentItem();
-                TouchImageView imageView = (TouchImageView)mViewPager.getChildAt(currentItem).findViewById(R.id.child_image);
-                return !imageView.isZoomed();
-            }
-        });
-
 
         mTop = (TextView) findViewById(R.id.scaleLayout_top);
         mTop.setOnClickListener(new View.OnClickListener() {
@@ -99,6 +94,13 @@ public class ScaleViewPagerActivity extends AppCompatActivity {
     }
 
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        BitmapMemoryCache.getInstance().trimMemory(level);
+        BitmapPool.getInstance().trimMemory(level);
+    }
+
     public void showToast(String content){
         Toast.makeText(ScaleViewPagerActivity.this, content, Toast.LENGTH_SHORT).show();
     }
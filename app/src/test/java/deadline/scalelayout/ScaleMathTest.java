@@ -0,0 +1,134 @@
+package deadline.scalelayout;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 过渡动画的插值, 以及在60/90/120Hz下按Choreographer的帧时间推进时的轨迹
+ */
+public class ScaleMathTest {
+
+    private static final float[] REFRESH_RATES = {60f, 90f, 120f};
+
+    /**
+     * 三种帧率共同的帧间隔, 33.3ms
+     */
+    private static final float COMMON_RATE = 30f;
+
+    /**
+     * 和ScaleLayout.DEFAULT_DURATION一致
+     */
+    private static final float TWEEN_DURATION = 1000f;
+
+    /**
+     * 和ScaleTransitionDriver一样，把第frame帧的vsync时间截断为毫秒
+     * @param baseNanos 第0帧的vsync时间
+     */
+    private static long frameTime(long baseNanos, float refreshRate, int frame){
+        return (baseNanos + (long) (frame * 1e9 / refreshRate)) / 1000000;
+    }
+
+    private static float frameMillis(float refreshRate){
+        return 1000f / refreshRate;
+    }
+
+    /**
+     * 按ScaleLayout.stepTween的方式推进动画, 只记录三种帧率共同的帧
+     */
+    private static float[] tweenTrajectory(float from, float to, float refreshRate, long baseNanos){
+        float duration = TWEEN_DURATION * Math.abs(to - from);
+        int stride = Math.round(refreshRate / COMMON_RATE);
+        // 多记录一帧，包含到达目标之后的那一帧
+        float[] values = new float[(int) Math.ceil(duration * COMMON_RATE / 1000f) + 2];
+        long startTime = frameTime(baseNanos, refreshRate, 0);
+        for (int frame = 0; frame / stride < values.length; frame++) {
+            long time = frameTime(baseNanos, refreshRate, frame);
+            float fraction = ScaleMath.tweenFraction(time - startTime, duration, 0);
+            if(frame % stride == 0){
+                values[frame / stride] = ScaleMath.tween(from, to, fraction);
+            }
+        }
+        return values;
+    }
+
+    @Test
+    public void accelerateDecelerateMatchesTheAnimatorDefault(){
+        assertEquals(0f, ScaleMath.accelerateDecelerate(0f), 1e-6f);
+        assertEquals(0.5f, ScaleMath.accelerateDecelerate(0.5f), 1e-6f);
+        assertEquals(1f, ScaleMath.accelerateDecelerate(1f), 0f);
+        for (float fraction = 0; fraction <= 1f; fraction += 0.05f) {
+            float expected = (float) (Math.cos((fraction + 1) * Math.PI) / 2.0f) + 0.5f;
+            assertEquals(expected, ScaleMath.accelerateDecelerate(fraction), 0f);
+        }
+    }
+
+    @Test
+    public void tweenEndsExactlyOnTheTarget(){
+        assertEquals(0.7f, ScaleMath.tween(1f, 0.7f, 1f), 0f);
+        assertEquals(1f, ScaleMath.tween(1f, 0.7f, 0f), 0f);
+        assertEquals(1f, ScaleMath.tweenFraction(400, 300, 0), 0f);
+        assertEquals(0f, ScaleMath.tweenFraction(-5, 300, 0), 0f);
+        assertEquals(1f, ScaleMath.tweenFraction(0, 0, 0), 0f);
+    }
+
+    @Test
+    public void tweenVelocityMatchesTheSlope(){
+        float from = 1f, to = 0.7f, duration = 300f;
+        for (float fraction = 0.1f; fraction < 0.95f; fraction += 0.1f) {
+            float step = 0.001f;
+            float slope = (ScaleMath.tween(from, to, fraction + step) - ScaleMath.tween(from, to, fraction - step))
+                    / (2 * step * duration / 1000f);
+            assertEquals(slope, ScaleMath.tweenVelocity(from, to, fraction, duration), 0.01f);
+        }
+        assertEquals(0f, ScaleMath.tweenVelocity(from, to, 1f, duration), 0f);
+    }
+
+    @Test
+    public void tweenTrajectoryIsTheSameAtEveryRefreshRate(){
+        float[][] cases = {{1f, 0.7f}, {0.85f, 1f}, {0.72f, 0.7f}};
+        for (float[] c : cases) {
+            float[] reference = tweenTrajectory(c[0], c[1], REFRESH_RATES[0], 0);
+            for (int i = 1; i < REFRESH_RATES.length; i++) {
+                float[] values = tweenTrajectory(c[0], c[1], REFRESH_RATES[i], 0);
+                for (int k = 0; k < reference.length; k++) {
+                    assertEquals(c[0] + " -> " + c[1] + " at " + REFRESH_RATES[i] + "Hz, "
+                            + (k * 1000f / COMMON_RATE) + "ms", reference[k], values[k], 0f);
+                }
+            }
+            assertEquals(c[1], reference[reference.length - 1], 0f);
+        }
+    }
+
+    /**
+     * 时长调整为整数帧后，无论帧时间怎样截断，都正好在最后一帧到达目标
+     */
+    @Test
+    public void frameAlignedTweenEndsOnItsLastFrame(){
+        float[] durations = {250f, 300f, 83f, 1000f};
+        long[] baseNanos = {0, 200000, 500000, 900000, 16123456};
+        for (float refreshRate : REFRESH_RATES) {
+            float frameMillis = frameMillis(refreshRate);
+            for (float rawDuration : durations) {
+                float duration = ScaleMath.frameAlignedDuration(rawDuration, frameMillis);
+                int frames = Math.round(duration / frameMillis);
+                assertEquals(frames * frameMillis, duration, 1e-3f);
+                for (long base : baseNanos) {
+                    long startTime = frameTime(base, refreshRate, 0);
+                    long last = frameTime(base, refreshRate, frames);
+                    long beforeLast = frameTime(base, refreshRate, frames - 1);
+                    String message = rawDuration + "ms at " + refreshRate + "Hz, base " + base + "ns";
+                    assertEquals(message, 1f, ScaleMath.tweenFraction(last - startTime, duration, frameMillis), 0f);
+                    assertTrue(message, ScaleMath.tweenFraction(beforeLast - startTime, duration, frameMillis) < 1f);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void frameAlignedDurationIsAtLeastOneFrame(){
+        assertEquals(frameMillis(60f), ScaleMath.frameAlignedDuration(3f, frameMillis(60f)), 1e-4f);
+        assertEquals(123f, ScaleMath.frameAlignedDuration(123f, 0), 0f);
+    }
+}
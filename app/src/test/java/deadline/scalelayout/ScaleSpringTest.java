@@ -0,0 +1,222 @@
+package deadline.scalelayout;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * ScaleSpring 的回弹时间和原来 DEFAULT_DURATION * |to - from| 的动画对比
+ */
+public class ScaleSpringTest {
+
+    /**
+     * 原来ValueAnimator的时长系数, 和ScaleLayout.DEFAULT_DURATION一致
+     */
+    private static final float TWEEN_DURATION = 1000f;
+
+    /**
+     * 2000像素高时半个像素对应的scale
+     */
+    private static final float REST_THRESHOLD = 0.5f / 2000;
+
+    private static final long FRAME = 16;
+
+    /**
+     * 按FRAME的间隔推进，返回到达目标所用的时间, 毫秒
+     */
+    private static long settleTime(float from, float to, float velocity){
+        ScaleSpring spring = new ScaleSpring();
+        spring.setRestThreshold(REST_THRESHOLD);
+        spring.start(from, to, velocity, TWEEN_DURATION * Math.abs(to - from), 0);
+        long time = 0;
+        while(!spring.update(time)){
+            time += FRAME;
+            assertTrue("spring never settles", time < 5000);
+        }
+        assertEquals(to, spring.getValue(), 0f);
+        assertEquals(0f, spring.getVelocity(), 0f);
+        return time;
+    }
+
+    private static long tweenTime(float from, float to){
+        return (long) Math.ceil(TWEEN_DURATION * Math.abs(to - from));
+    }
+
+    @Test
+    public void fastFlingSettlesInAFractionOfTheTween(){
+        long spring = settleTime(0.97f, 0.7f, -4f);
+        assertTrue("spring " + spring + "ms, tween " + tweenTime(0.97f, 0.7f) + "ms",
+                spring <= tweenTime(0.97f, 0.7f) / 2);
+    }
+
+    @Test
+    public void flingSettlesFasterThanTheTween(){
+        long spring = settleTime(0.85f, 0.7f, -2f);
+        assertTrue("spring " + spring + "ms, tween " + tweenTime(0.85f, 0.7f) + "ms",
+                spring < tweenTime(0.85f, 0.7f));
+
+        spring = settleTime(0.75f, 1f, 3f);
+        assertTrue("spring " + spring + "ms, tween " + tweenTime(0.75f, 1f) + "ms",
+                spring < tweenTime(0.75f, 1f));
+    }
+
+    @Test
+    public void settleFromRestIsNoSlowerThanTheTween(){
+        float[][] cases = {{0.95f, 1f}, {0.85f, 0.7f}, {0.7f, 1f}, {0.99f, 0.7f}};
+        for (float[] c : cases) {
+            long spring = settleTime(c[0], c[1], 0);
+            // 最后一帧可能落在时长之后
+            assertTrue(c[0] + " -> " + c[1] + ": spring " + spring + "ms, tween " + tweenTime(c[0], c[1]) + "ms",
+                    spring < tweenTime(c[0], c[1]) + FRAME);
+        }
+    }
+
+    @Test
+    public void slowFlingIsNoSlowerThanTheTween(){
+        long spring = settleTime(0.8f, 0.7f, -0.05f);
+        assertTrue(spring < tweenTime(0.8f, 0.7f) + FRAME);
+    }
+
+    @Test
+    public void startsWithTheReleaseVelocity(){
+        ScaleSpring spring = new ScaleSpring();
+        spring.setRestThreshold(REST_THRESHOLD);
+        spring.start(0.9f, 0.7f, -3f, TWEEN_DURATION * 0.2f, 0);
+        spring.update(0);
+        assertEquals(-3f, spring.getVelocity(), 1e-4f);
+        assertEquals(0.9f, spring.getValue(), 1e-6f);
+    }
+
+    /**
+     * minScale在回弹中变化时换一个目标, 位置和速度都是连续的, 下一帧照常推进,
+     * 目标不变时和没有换目标的轨迹一样
+     */
+    @Test
+    public void retargetContinuesTheTrajectory(){
+        ScaleSpring spring = new ScaleSpring();
+        ScaleSpring unchanged = new ScaleSpring();
+        spring.setRestThreshold(REST_THRESHOLD);
+        unchanged.setRestThreshold(REST_THRESHOLD);
+        spring.start(1f, 0.7f, 0, TWEEN_DURATION * 0.3f, 0);
+        unchanged.start(1f, 0.7f, 0, TWEEN_DURATION * 0.3f, 0);
+        long time = 0;
+        for (; time <= 5 * FRAME; time += FRAME) {
+            spring.update(time);
+            unchanged.update(time);
+        }
+        float value = spring.getValue();
+        float velocity = spring.getVelocity();
+        assertTrue(velocity < 0);
+
+        spring.retarget(0.7f);
+        assertEquals(value, spring.getValue(), 0f);
+        assertEquals(velocity, spring.getVelocity(), 0f);
+
+        for (boolean finished = false; !finished; time += FRAME) {
+            finished = unchanged.update(time);
+            assertEquals(finished, spring.update(time));
+            assertEquals("at " + time + "ms", unchanged.getValue(), spring.getValue(), 1e-4f);
+            assertTrue("spring never settles", time < 5000);
+        }
+    }
+
+    @Test
+    public void retargetKeepsMovingToTheNewTarget(){
+        ScaleSpring spring = new ScaleSpring();
+        spring.setRestThreshold(REST_THRESHOLD);
+        spring.start(1f, 0.7f, 0, TWEEN_DURATION * 0.3f, 0);
+        long time = 0;
+        for (; time <= 5 * FRAME; time += FRAME) {
+            spring.update(time);
+        }
+        float previous = spring.getValue();
+        spring.retarget(0.65f);
+
+        while (!spring.update(time)) {
+            // 没有停顿的帧，也不会越过新的目标
+            assertTrue("at " + time + "ms", spring.getValue() < previous);
+            assertTrue(spring.getValue() >= 0.65f);
+            previous = spring.getValue();
+            time += FRAME;
+            assertTrue("spring never settles", time < 5000);
+        }
+        assertEquals(0.65f, spring.getValue(), 0f);
+    }
+
+    @Test
+    public void flingDoesNotOvershoot(){
+        ScaleSpring spring = new ScaleSpring();
+        spring.setRestThreshold(REST_THRESHOLD);
+        spring.start(0.97f, 0.7f, -4f, TWEEN_DURATION * 0.27f, 0);
+        float previous = 0.97f;
+        for (long time = 0; !spring.update(time); time++) {
+            assertTrue(spring.getValue() <= previous);
+            assertTrue(spring.getValue() >= 0.7f);
+            previous = spring.getValue();
+        }
+    }
+
+    @Test
+    public void noTailOfSubPixelFrames(){
+        ScaleSpring spring = new ScaleSpring();
+        spring.setRestThreshold(REST_THRESHOLD);
+        spring.start(0.7f, 1f, 0, TWEEN_DURATION * 0.3f, 0);
+        float previous = 0.7f;
+        int subPixelFrames = 0;
+        long time = 0;
+        while(!spring.update(time)){
+            // 一个像素 = 2 * REST_THRESHOLD
+            if(Math.abs(spring.getValue() - previous) < 2 * REST_THRESHOLD){
+                subPixelFrames++;
+            }
+            previous = spring.getValue();
+            time += FRAME;
+        }
+        assertTrue("sub-pixel frames " + subPixelFrames, subPixelFrames <= 5);
+    }
+
+    /**
+     * 按Choreographer的帧时间(截断为毫秒)推进, 只记录60/90/120Hz共同的帧(每33.3ms)
+     */
+    private static float[] trajectory(float from, float to, float velocity, float refreshRate){
+        ScaleSpring spring = new ScaleSpring();
+        spring.setRestThreshold(REST_THRESHOLD);
+        spring.start(from, to, velocity, TWEEN_DURATION * Math.abs(to - from), -1);
+        int stride = Math.round(refreshRate / 30f);
+        float[] values = new float[(int) (TWEEN_DURATION / 1000f * 30) + 1];
+        for (int frame = 0; frame / stride < values.length; frame++) {
+            long time = (long) (frame * 1e9 / refreshRate) / 1000000;
+            spring.update(time);
+            if(frame % stride == 0){
+                values[frame / stride] = spring.getValue();
+            }
+        }
+        return values;
+    }
+
+    @Test
+    public void trajectoryIsTheSameAtEveryRefreshRate(){
+        float[][] cases = {{0.97f, 0.7f, -4f}, {0.85f, 0.7f, 0}, {0.75f, 1f, 3f}, {0.8f, 0.7f, 1f}};
+        for (float[] c : cases) {
+            float[] at60 = trajectory(c[0], c[1], c[2], 60f);
+            float[] at90 = trajectory(c[0], c[1], c[2], 90f);
+            float[] at120 = trajectory(c[0], c[1], c[2], 120f);
+            for (int k = 0; k < at60.length; k++) {
+                String message = c[0] + " -> " + c[1] + " @" + c[2] + ", " + (k * 1000f / 30) + "ms";
+                assertEquals(message, at60[k], at90[k], 0f);
+                assertEquals(message, at60[k], at120[k], 0f);
+            }
+            assertEquals(c[1], at60[at60.length - 1], 0f);
+        }
+    }
+
+    @Test
+    public void alreadyAtTargetFinishesImmediately(){
+        ScaleSpring spring = new ScaleSpring();
+        spring.setRestThreshold(REST_THRESHOLD);
+        spring.start(0.7f, 0.7f, 0, 0, 0);
+        assertTrue(spring.update(0));
+        assertEquals(0.7f, spring.getValue(), 0f);
+    }
+}
@@ -0,0 +1,58 @@
+package deadline.scalelayout;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ScaleLayout 每一帧和每次布局用到的计算
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ScaleMathBenchmark {
+
+    // 非final字段，避免被当作常量折叠
+    int height = 1920;
+    int topHeight = 168;
+    int bottomHeight = 144;
+    float minScale = 0.7f;
+    float slopLength = -240f;
+    float velocity = -3200f;
+
+    @Benchmark
+    public float suggestScale(){
+        return ScaleMath.suggestScale(topHeight + bottomHeight, height);
+    }
+
+    @Benchmark
+    public float pivotY(){
+        return ScaleMath.pivotY(true, true, topHeight, bottomHeight, height);
+    }
+
+    /**
+     * 拖动时一次move: 滑动距离换算为scale, 再计算topView bottomView的透明度和位移
+     */
+    @Benchmark
+    public float dragFrame(){
+        float scale = ScaleMath.scaleForSlopLength(slopLength, height, minScale, true);
+        float progress = ScaleMath.progress(scale, minScale);
+        return ScaleMath.decorationAlpha(progress)
+                + ScaleMath.decorationOffset(topHeight, progress)
+                + ScaleMath.decorationOffset(bottomHeight, progress);
+    }
+
+    /**
+     * 松手时: 速度换算和反向换算滑动距离
+     */
+    @Benchmark
+    public float release(){
+        float scaleVelocity = ScaleMath.scaleVelocity(velocity, height, true);
+        return scaleVelocity + ScaleMath.slopLengthForScale(ScaleMath.clamp(0.85f, minScale), height, true);
+    }
+}
@@ -0,0 +1,56 @@
+package deadline.scalelayout;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 回弹的开始（求角频率）和每一帧的推进
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ScaleSpringBenchmark {
+
+    private static final float REST_THRESHOLD = 0.5f / 1920;
+
+    float from = 0.97f;
+    float to = 0.7f;
+    float velocity = -4f;
+
+    private ScaleSpring spring;
+    private long time;
+
+    @Setup
+    public void setup(){
+        spring = new ScaleSpring();
+        spring.setRestThreshold(REST_THRESHOLD);
+        spring.start(from, to, 0, 1000 * Math.abs(to - from), 0);
+    }
+
+    @Benchmark
+    public float start(){
+        spring.start(from, to, velocity, 1000 * Math.abs(to - from), 0);
+        return spring.getFrequency();
+    }
+
+    /**
+     * 每次推进1ms, 回弹结束后从头开始
+     */
+    @Benchmark
+    public float update(){
+        if(spring.update(time)){
+            spring.start(from, to, 0, 1000 * Math.abs(to - from), 0);
+            time = 0;
+        }else{
+            time++;
+        }
+        return spring.getValue();
+    }
+}